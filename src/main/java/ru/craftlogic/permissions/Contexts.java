@@ -0,0 +1,55 @@
+package ru.craftlogic.permissions;
+
+import net.minecraft.entity.player.EntityPlayer;
+
+import java.util.Arrays;
+
+public final class Contexts {
+    public static final String GLOBAL = "";
+    public static final String DIMENSION = "dimension";
+
+    private Contexts() {}
+
+    public static String of(EntityPlayer player) {
+        return pair(DIMENSION, String.valueOf(player.dimension));
+    }
+
+    public static String pair(String key, String value) {
+        return key + "=" + value;
+    }
+
+    public static boolean isValid(String context) {
+        if (context.isEmpty()) {
+            return false;
+        }
+        for (String pair : context.split(";")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0 || eq == pair.length() - 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static String normalize(String context) {
+        String[] pairs = context.split(";");
+        Arrays.sort(pairs);
+        return String.join(";", pairs);
+    }
+
+    public static boolean applies(String context, String active) {
+        if (context.isEmpty() || context.equals(active)) {
+            return true;
+        }
+        if (active.isEmpty()) {
+            return false;
+        }
+        String wrapped = ";" + active + ";";
+        for (String pair : context.split(";")) {
+            if (!wrapped.contains(";" + pair + ";")) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
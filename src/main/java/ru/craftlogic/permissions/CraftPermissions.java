@@ -6,9 +6,11 @@ import net.minecraftforge.fml.common.SidedProxy;
 import net.minecraftforge.fml.common.event.FMLInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLPostInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLPreInitializationEvent;
+import net.minecraftforge.fml.relauncher.Side;
 import ru.craftlogic.api.CraftAPI;
 import ru.craftlogic.api.network.AdvancedNetwork;
 import ru.craftlogic.permissions.common.ProxyCommon;
+import ru.craftlogic.permissions.network.MessagePermissions;
 
 @Mod(modid = CraftPermissions.MOD_ID, version = CraftPermissions.VERSION, dependencies = "required-after:" + CraftAPI.MOD_ID)
 public class CraftPermissions {
@@ -29,6 +31,7 @@ public class CraftPermissions {
     @Mod.EventHandler
     public void init(FMLInitializationEvent event) {
         NETWORK.openChannel();
+        NETWORK.registerMessage(() -> PROXY, MessagePermissions.class, Side.CLIENT);
         PROXY.init();
     }
 
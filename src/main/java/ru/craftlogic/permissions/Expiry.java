@@ -0,0 +1,48 @@
+package ru.craftlogic.permissions;
+
+import java.util.Objects;
+
+public final class Expiry {
+    public final Kind kind;
+    public final String context;
+    public final Object key;
+
+    private Expiry(Kind kind, String context, Object key) {
+        this.kind = kind;
+        this.context = context;
+        this.key = key;
+    }
+
+    public static Expiry permission(String context, String node) {
+        return new Expiry(Kind.PERMISSION, context, node);
+    }
+
+    public static Expiry metadata(String context, String key) {
+        return new Expiry(Kind.METADATA, context, key);
+    }
+
+    public static Expiry membership(String context, GroupManager.Group group) {
+        return new Expiry(Kind.MEMBERSHIP, context, group);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Expiry)) {
+            return false;
+        }
+        Expiry e = (Expiry) o;
+        return this.kind == e.kind && this.context.equals(e.context) && this.key.equals(e.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.kind, this.context, this.key);
+    }
+
+    public enum Kind {
+        PERMISSION, METADATA, MEMBERSHIP
+    }
+}
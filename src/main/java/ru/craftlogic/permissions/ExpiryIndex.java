@@ -0,0 +1,69 @@
+package ru.craftlogic.permissions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ExpiryIndex {
+    private final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    public void schedule(Object holder, Expiry expiry, long expiration) {
+        if (expiration != 0) {
+            this.entries.add(new Entry(holder, expiry, expiration, this.sequence.incrementAndGet()));
+        }
+    }
+
+    public List<Entry> poll(long now) {
+        long next = this.next();
+        if (next == 0 || next >= now) {
+            return Collections.emptyList();
+        }
+        List<Entry> expired = new ArrayList<>();
+        Entry first;
+        while ((first = this.entries.pollFirst()) != null) {
+            if (first.expiration >= now) {
+                this.entries.add(first);
+                break;
+            }
+            expired.add(first);
+        }
+        return expired;
+    }
+
+    public long next() {
+        Iterator<Entry> iterator = this.entries.iterator();
+        return iterator.hasNext() ? iterator.next().expiration : 0;
+    }
+
+    public void clear() {
+        this.entries.clear();
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public static final class Entry implements Comparable<Entry> {
+        public final Object holder;
+        public final Expiry expiry;
+        public final long expiration;
+        private final long sequence;
+
+        Entry(Object holder, Expiry expiry, long expiration, long sequence) {
+            this.holder = holder;
+            this.expiry = expiry;
+            this.expiration = expiration;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int c = Long.compare(this.expiration, o.expiration);
+            return c != 0 ? c : Long.compare(this.sequence, o.sequence);
+        }
+    }
+}
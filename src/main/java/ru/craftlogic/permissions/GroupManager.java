@@ -3,21 +3,37 @@ package ru.craftlogic.permissions;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
 import org.apache.logging.log4j.Logger;
 import ru.craftlogic.api.util.ConfigurableManager;
+import ru.craftlogic.permissions.util.CompactLongMap;
+import ru.craftlogic.permissions.util.CompactStringMap;
+import ru.craftlogic.permissions.util.CompactStringSet;
+import ru.craftlogic.permissions.util.Footprint;
+import ru.craftlogic.permissions.util.JsonFragments;
+import ru.craftlogic.permissions.util.StringPool;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 public class GroupManager extends ConfigurableManager {
+    public static final int MAX_DEPTH = 64;
+    private static final AtomicLongFieldUpdater<Group> REVISION = AtomicLongFieldUpdater.newUpdater(Group.class, "revision");
+
     public final PermissionManager permissionManager;
-    public final Map<String, Group> groups = new HashMap<>();
-    public final Map<Group, Map<UserManager.User, Long>> groupUsersCache = new HashMap<>();
+    public final Map<String, Group> groups = new ConcurrentHashMap<>();
+    public final Map<Group, Map<UserManager.User, Long>> groupUsersCache = new ConcurrentHashMap<>();
+    private final Map<String, Set<Group>> childGroups = new ConcurrentHashMap<>();
+    private final Path file;
 
     public GroupManager(PermissionManager permissionManager, Path configPath, Logger logger) {
         super(permissionManager.getServer(), configPath, logger);
         this.permissionManager = permissionManager;
+        this.file = configPath;
     }
 
     @Override
@@ -65,52 +81,245 @@ public class GroupManager extends ConfigurableManager {
                 }
             }
             int priority = g.has("priority") ? g.get("priority").getAsInt() : 0;
-            this.groups.put(groupName, new Group(groupName, parentName, permissions, metadata, priority));
+            Group group = new Group(groupName, parentName, permissions, metadata, priority);
+            loadExpirations(g, Contexts.GLOBAL, group.permissions, group.metadata, group.expirations);
+            if (g.has("contexts")) {
+                for (Map.Entry<String, JsonElement> e : g.getAsJsonObject("contexts").entrySet()) {
+                    String context = e.getKey();
+                    if (!Contexts.isValid(context)) {
+                        getLogger().error("Group '" + groupName + "' has malformed context '" + context + "'! Ignoring it...");
+                        continue;
+                    }
+                    context = Contexts.normalize(context);
+                    JsonObject c = e.getValue().getAsJsonObject();
+                    if (c.has("permissions")) {
+                        List<String> p = new ArrayList<>();
+                        for (JsonElement element : c.getAsJsonArray("permissions")) {
+                            p.add(element.getAsString());
+                        }
+                        group.contextPermissions.put(context, new CompactStringSet(p));
+                    }
+                    if (c.has("metadata")) {
+                        Map<String, String> m = new HashMap<>();
+                        for (Map.Entry<String, JsonElement> me : c.getAsJsonObject("metadata").entrySet()) {
+                            m.put(me.getKey(), me.getValue().getAsString());
+                        }
+                        group.contextMetadata.put(context, new CompactStringMap(m));
+                    }
+                    loadExpirations(c, context, group.contextPermissions.get(context), group.contextMetadata.get(context), group.expirations);
+                }
+            }
+            this.groups.put(groupName, group);
+            this.addChild(group);
         }
         groupCache.clear();
     }
 
     @Override
     protected void save(JsonObject groups) {
-        String defaultGroupName = permissionManager.getDefaultGroupName();
+        JsonParser parser = new JsonParser();
         for (Map.Entry<String, Group> entry : this.groups.entrySet()) {
-            Group g = entry.getValue();
-            JsonObject group = new JsonObject();
-            if (!(g.name.equals(defaultGroupName) && g.parent.equals(defaultGroupName))) {
-                group.addProperty("parent", g.parent);
+            groups.add(entry.getKey(), parser.parse(this.fragment(entry.getValue())));
+        }
+    }
+
+    @Override
+    public synchronized void save(boolean force) throws IOException {
+        if (force || this.isDirty()) {
+            JsonFragments.write(this.file, sink -> {
+                for (Map.Entry<String, Group> entry : this.groups.entrySet()) {
+                    sink.accept(entry.getKey(), this.fragment(entry.getValue()));
+                }
+            });
+            this.setDirty(false);
+        }
+    }
+
+    void markDirty(Group group) {
+        REVISION.incrementAndGet(group);
+    }
+
+    private String fragment(Group group) {
+        long revision = group.revision;
+        JsonFragments.Fragment fragment = group.fragment;
+        if (fragment == null || !fragment.matches(revision)) {
+            JsonObject json;
+            synchronized (group) {
+                json = this.encode(group);
+            }
+            String encoded = JsonFragments.encode(json);
+            group.fragment = fragment = new JsonFragments.Fragment(revision, encoded.isEmpty() ? "{}" : encoded);
+        }
+        return fragment.json;
+    }
+
+    private JsonObject encode(Group g) {
+        String defaultGroupName = permissionManager.getDefaultGroupName();
+        JsonObject group = new JsonObject();
+        if (!(g.name.equals(defaultGroupName) && g.parent.equals(defaultGroupName))) {
+            group.addProperty("parent", g.parent);
+        }
+        if (!g.permissions.isEmpty()) {
+            JsonArray permissions = new JsonArray();
+            for (String permission : g.permissions) {
+                permissions.add(new JsonPrimitive(permission));
+            }
+            group.add("permissions", permissions);
+        }
+        if (!g.metadata.isEmpty()) {
+            JsonObject metadata = new JsonObject();
+            for (Map.Entry<String, String> e : g.metadata.entrySet()) {
+                metadata.addProperty(e.getKey(), e.getValue());
             }
-            if (!g.permissions.isEmpty()) {
+            group.add("metadata", metadata);
+        }
+        if (g.priority != 0) {
+            group.addProperty("priority", g.priority);
+        }
+        JsonObject contexts = saveContexts(g.contextPermissions, g.contextMetadata);
+        saveExpirations(group, contexts, g.expirations);
+        if (contexts.size() > 0) {
+            group.add("contexts", contexts);
+        }
+        return group;
+    }
+
+    public void addMember(Group group, UserManager.User user, long expiration) {
+        this.groupUsersCache.computeIfAbsent(group, k -> new ConcurrentHashMap<>()).put(user, expiration);
+    }
+
+    public void removeMember(Group group, UserManager.User user) {
+        Map<UserManager.User, Long> members = this.groupUsersCache.get(group);
+        if (members != null) {
+            members.remove(user);
+        }
+    }
+
+    public Set<Group> children(String name) {
+        Set<Group> children = this.childGroups.get(name);
+        return children != null ? Collections.unmodifiableSet(children) : Collections.emptySet();
+    }
+
+    public Set<Group> descendants(Group group) {
+        Set<Group> descendants = new HashSet<>();
+        Deque<Group> queue = new ArrayDeque<>();
+        queue.add(group);
+        while (!queue.isEmpty()) {
+            for (Group child : this.children(queue.poll().name)) {
+                if (child != group && descendants.add(child)) {
+                    queue.add(child);
+                }
+            }
+        }
+        return descendants;
+    }
+
+    void addChild(Group group) {
+        if (!group.parent.equals(group.name)) {
+            this.childGroups.computeIfAbsent(group.parent, k -> ConcurrentHashMap.newKeySet()).add(group);
+        }
+    }
+
+    void removeChild(Group group) {
+        this.childGroups.computeIfPresent(group.parent, (k, children) -> {
+            children.remove(group);
+            return children.isEmpty() ? null : children;
+        });
+    }
+
+    void setParent(Group group, String parent) {
+        this.removeChild(group);
+        group.parent = StringPool.intern(parent);
+        this.addChild(group);
+        this.markDirty(group);
+    }
+
+    void setName(Group group, String name) {
+        this.removeChild(group);
+        group.name = StringPool.intern(name);
+        this.addChild(group);
+        this.markDirty(group);
+    }
+
+    static JsonObject saveContexts(Map<String, Set<String>> contextPermissions, Map<String, Map<String, String>> contextMetadata) {
+        JsonObject contexts = new JsonObject();
+        for (Map.Entry<String, Set<String>> e : contextPermissions.entrySet()) {
+            if (!e.getValue().isEmpty()) {
                 JsonArray permissions = new JsonArray();
-                for (String permission : g.permissions) {
+                for (String permission : e.getValue()) {
                     permissions.add(new JsonPrimitive(permission));
                 }
-                group.add("permissions", permissions);
+                getOrCreate(contexts, e.getKey()).add("permissions", permissions);
             }
-            if (!g.metadata.isEmpty()) {
+        }
+        for (Map.Entry<String, Map<String, String>> e : contextMetadata.entrySet()) {
+            if (!e.getValue().isEmpty()) {
                 JsonObject metadata = new JsonObject();
-                for (Map.Entry<String, String> e : g.metadata.entrySet()) {
-                    metadata.addProperty(e.getKey(), e.getValue());
+                for (Map.Entry<String, String> me : e.getValue().entrySet()) {
+                    metadata.addProperty(me.getKey(), me.getValue());
+                }
+                getOrCreate(contexts, e.getKey()).add("metadata", metadata);
+            }
+        }
+        return contexts;
+    }
+
+    static void loadExpirations(JsonObject json, String context, Set<String> permissions, Map<String, String> metadata, Map<Expiry, Long> expirations) {
+        if (!json.has("expirations")) {
+            return;
+        }
+        JsonObject e = json.getAsJsonObject("expirations");
+        Map<Expiry, Long> loaded = new HashMap<>();
+        if (e.has("permissions") && permissions != null) {
+            for (Map.Entry<String, JsonElement> pe : e.getAsJsonObject("permissions").entrySet()) {
+                if (permissions.contains(pe.getKey())) {
+                    loaded.put(Expiry.permission(context, StringPool.intern(pe.getKey())), pe.getValue().getAsLong());
                 }
-                group.add("metadata", metadata);
             }
-            if (g.priority != 0) {
-                group.addProperty("priority", g.priority);
+        }
+        if (e.has("metadata") && metadata != null) {
+            for (Map.Entry<String, JsonElement> me : e.getAsJsonObject("metadata").entrySet()) {
+                if (metadata.containsKey(me.getKey())) {
+                    loaded.put(Expiry.metadata(context, StringPool.intern(me.getKey())), me.getValue().getAsLong());
+                }
             }
-            groups.add(entry.getKey(), group);
         }
+        expirations.putAll(loaded);
+    }
+
+    static void saveExpirations(JsonObject json, JsonObject contexts, Map<Expiry, Long> expirations) {
+        for (Map.Entry<Expiry, Long> e : expirations.entrySet()) {
+            Expiry expiry = e.getKey();
+            JsonObject target = expiry.context.isEmpty() ? json : getOrCreate(contexts, expiry.context);
+            String kind = expiry.kind == Expiry.Kind.PERMISSION ? "permissions" : "metadata";
+            getOrCreate(getOrCreate(target, "expirations"), kind).addProperty((String) expiry.key, e.getValue());
+        }
+    }
+
+    static JsonObject getOrCreate(JsonObject parent, String key) {
+        JsonObject child = parent.getAsJsonObject(key);
+        if (child == null) {
+            parent.add(key, child = new JsonObject());
+        }
+        return child;
     }
 
     public class Group implements Comparable<Group> {
-        public final String name, parent;
+        public volatile String name, parent;
         public final Set<String> permissions;
         public final Map<String, String> metadata;
+        public final Map<String, Set<String>> contextPermissions = new ConcurrentHashMap<>();
+        public final Map<String, Map<String, String>> contextMetadata = new ConcurrentHashMap<>();
+        public final Map<Expiry, Long> expirations = new CompactLongMap<>();
         public int priority;
+        volatile long revision;
+        volatile JsonFragments.Fragment fragment;
 
         public Group(String name, String parent, Set<String> permissions, Map<String, String> metadata, int priority) {
-            this.name = name;
-            this.parent = parent;
-            this.permissions = permissions;
-            this.metadata = metadata;
+            this.name = StringPool.intern(name);
+            this.parent = StringPool.intern(parent);
+            this.permissions = new CompactStringSet(permissions);
+            this.metadata = new CompactStringMap(metadata);
             this.priority = priority;
         }
 
@@ -130,9 +339,9 @@ public class GroupManager extends ConfigurableManager {
         public Set<String> permissions(boolean inherit) {
             Set<String> permissions = new HashSet<>(this.permissions);
             if (inherit) {
-                Group parent = this.parent();
-                if (parent != null) {
-                    permissions.addAll(parent.permissions(true));
+                int depth = 1;
+                for (Group parent = this.parent(); parent != null && depth < MAX_DEPTH; parent = parent.parent(), depth++) {
+                    permissions.addAll(parent.permissions);
                 }
             }
             return permissions;
@@ -143,13 +352,102 @@ public class GroupManager extends ConfigurableManager {
             if (inherit) {
                 Group parent = this.parent();
                 if (parent != null) {
-                    metadata.putAll(parent.metadata(true));
+                    parent.collectMetadata(Contexts.GLOBAL, metadata, 2);
                 }
             }
             metadata.putAll(this.metadata);
             return metadata;
         }
 
+        public Set<String> permissionsIn(String context) {
+            return context.isEmpty() ? this.permissions : this.contextPermissions.computeIfAbsent(StringPool.intern(context), k -> new CompactStringSet());
+        }
+
+        public Map<String, String> metadataIn(String context) {
+            return context.isEmpty() ? this.metadata : this.contextMetadata.computeIfAbsent(StringPool.intern(context), k -> new CompactStringMap());
+        }
+
+        public boolean inheritsFrom(Group ancestor) {
+            Group group = this;
+            for (int depth = 0; group != null && depth < MAX_DEPTH; depth++) {
+                if (group == ancestor) {
+                    return true;
+                }
+                group = group.parent();
+            }
+            return false;
+        }
+
+        void collectPermissions(String context, Map<String, PermissionView.Grant> grants, int depth) {
+            String source = "group " + this.name;
+            PermissionView.grant(grants, this.permissions, source, depth, Contexts.GLOBAL);
+            for (Map.Entry<String, Set<String>> e : this.contextPermissions.entrySet()) {
+                if (Contexts.applies(e.getKey(), context)) {
+                    PermissionView.grant(grants, e.getValue(), source, depth, e.getKey());
+                }
+            }
+            Group parent = this.parent();
+            if (parent != null && depth < MAX_DEPTH) {
+                parent.collectPermissions(context, grants, depth + 1);
+            }
+        }
+
+        boolean grantsWildcard(String context, int depth) {
+            if (this.permissions.contains("*")) {
+                return true;
+            }
+            for (Map.Entry<String, Set<String>> e : this.contextPermissions.entrySet()) {
+                if (Contexts.applies(e.getKey(), context) && e.getValue().contains("*")) {
+                    return true;
+                }
+            }
+            Group parent = this.parent();
+            return parent != null && depth < MAX_DEPTH && parent.grantsWildcard(context, depth + 1);
+        }
+
+        void collectMetadata(String context, Map<String, String> metadata, int depth) {
+            Group parent = this.parent();
+            if (parent != null && depth < MAX_DEPTH) {
+                parent.collectMetadata(context, metadata, depth + 1);
+            }
+            metadata.putAll(this.metadata);
+            for (Map.Entry<String, Map<String, String>> e : this.contextMetadata.entrySet()) {
+                if (Contexts.applies(e.getKey(), context)) {
+                    metadata.putAll(e.getValue());
+                }
+            }
+        }
+
+        public long footprint(Footprint footprint) {
+            footprint.string(this.name);
+            footprint.string(this.parent);
+            footprint.strings(this.permissions);
+            footprint.strings(this.metadata);
+            long size = Footprint.align(12 + 9 * Footprint.REFERENCE + 4 + 8)
+                + ((CompactStringSet) this.permissions).footprint()
+                + ((CompactStringMap) this.metadata).footprint()
+                + Footprint.hashMap(this.contextPermissions.size())
+                + Footprint.hashMap(this.contextMetadata.size())
+                + ((CompactLongMap<Expiry>) this.expirations).footprint()
+                + this.expirations.size() * Footprint.align(12 + 3 * Footprint.REFERENCE);
+            for (Map.Entry<String, Set<String>> e : this.contextPermissions.entrySet()) {
+                footprint.string(e.getKey());
+                footprint.strings(e.getValue());
+                size += ((CompactStringSet) e.getValue()).footprint();
+            }
+            for (Map.Entry<String, Map<String, String>> e : this.contextMetadata.entrySet()) {
+                footprint.string(e.getKey());
+                footprint.strings(e.getValue());
+                size += ((CompactStringMap) e.getValue()).footprint();
+            }
+            JsonFragments.Fragment fragment = this.fragment;
+            if (fragment != null) {
+                footprint.string(fragment.json);
+                size += Footprint.align(12 + 16 + Footprint.REFERENCE);
+            }
+            return size;
+        }
+
         public Map<UserManager.User, Long> users() {
             Map<UserManager.User, Long> result = new HashMap<>();
             if (!this.name.equals(GroupManager.this.permissionManager.getDefaultGroupName())) {
@@ -0,0 +1,71 @@
+package ru.craftlogic.permissions;
+
+import ru.craftlogic.api.server.PlayerManager;
+import ru.craftlogic.api.world.OfflinePlayer;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class NameCache {
+    private static final int BATCH = 32;
+
+    private final Map<UUID, String> names = new ConcurrentHashMap<>();
+    private final Set<UUID> pending = ConcurrentHashMap.newKeySet();
+    private final Queue<UUID> queue = new ConcurrentLinkedQueue<>();
+    private volatile PlayerManager playerManager;
+
+    public void update(UUID id, String name) {
+        if (name != null) {
+            this.names.put(id, name);
+        }
+    }
+
+    public String get(UUID id) {
+        return this.names.get(id);
+    }
+
+    public int request(PlayerManager playerManager, Collection<UUID> ids) {
+        this.playerManager = playerManager;
+        int scheduled = 0;
+        for (UUID id : ids) {
+            if (!this.names.containsKey(id) && this.pending.add(id)) {
+                this.queue.add(id);
+                scheduled++;
+            }
+        }
+        return scheduled;
+    }
+
+    public void resolvePending() {
+        PlayerManager playerManager = this.playerManager;
+        if (playerManager == null) {
+            return;
+        }
+        UUID id;
+        for (int i = 0; i < BATCH && (id = this.queue.poll()) != null; i++) {
+            try {
+                OfflinePlayer player = playerManager.getOffline(id);
+                if (player != null) {
+                    this.update(id, player.getName());
+                }
+            } finally {
+                this.pending.remove(id);
+            }
+        }
+    }
+
+    public void clear() {
+        this.queue.clear();
+        this.pending.clear();
+        this.playerManager = null;
+    }
+
+    public int size() {
+        return this.names.size();
+    }
+}
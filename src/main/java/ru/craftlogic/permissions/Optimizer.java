@@ -0,0 +1,352 @@
+package ru.craftlogic.permissions;
+
+import ru.craftlogic.permissions.GroupManager.Group;
+import ru.craftlogic.permissions.UserManager.User;
+
+import java.util.*;
+
+public class Optimizer {
+    public static final String SNAPSHOT = "optimize";
+
+    private final PermissionManager permissionManager;
+    private final Map<Group, List<Group>> chains = new HashMap<>();
+    private final Set<String> granted = new HashSet<>();
+
+    public Optimizer(PermissionManager permissionManager) {
+        this.permissionManager = permissionManager;
+    }
+
+    public Report analyze() {
+        GroupManager groupManager = this.permissionManager.groupManager;
+        Collection<Group> groups = groupManager.groups.values();
+        Collection<User> users = this.permissionManager.userManager.users.values();
+        this.chains.clear();
+        Report report = new Report();
+        this.scan(report, groups, users, false);
+        Set<Finding> positive = new HashSet<>(report.findings);
+        this.granted.clear();
+        for (Group group : groups) {
+            this.collectGranted(group, group.contextPermissions, positive);
+        }
+        for (User user : users) {
+            this.collectGranted(user, user.contextPermissions, positive);
+        }
+        this.scan(report, groups, users, true);
+        for (Group group : groups) {
+            if (!this.permissionManager.affectsEveryone(group) && !this.hasMembers(group)) {
+                report.unused.add(group);
+                if (isEmpty(group)) {
+                    report.empty.add(group);
+                }
+            }
+        }
+        Set<Finding> removed = new HashSet<>(report.findings);
+        report.storedBefore = this.stored(Collections.emptySet());
+        report.storedAfter = this.stored(removed);
+        this.measure(report, Collections.emptySet(), false);
+        this.measure(report, removed, true);
+        return report;
+    }
+
+    private void scan(Report report, Collection<Group> groups, Collection<User> users, boolean negations) {
+        for (Group group : groups) {
+            List<Group> chain = this.chain(group);
+            if (chain == null) {
+                continue;
+            }
+            for (String context : contexts(group.contextPermissions)) {
+                for (String node : group.permissionsIn(context)) {
+                    if (node.startsWith("-") == negations && !group.expirations.containsKey(Expiry.permission(context, node))) {
+                        this.check(report, group, group.name, null, node, context, chain, Collections.emptyList());
+                    }
+                }
+            }
+        }
+        Group defaultGroup = this.permissionManager.getDefaultGroup();
+        for (User user : users) {
+            for (String context : contexts(user.contextPermissions)) {
+                List<Group> covering = new ArrayList<>();
+                if (defaultGroup != null && this.chain(defaultGroup) != null) {
+                    covering.add(defaultGroup);
+                }
+                this.addPermanent(covering, user.groups);
+                if (!context.isEmpty()) {
+                    this.addPermanent(covering, user.contextGroups.getOrDefault(context, Collections.emptyMap()));
+                }
+                for (String node : user.permissionsIn(context)) {
+                    if (node.startsWith("-") == negations && !user.expirations.containsKey(Expiry.permission(context, node))) {
+                        this.check(report, user, null, user.id, node, context, Collections.emptyList(), covering);
+                    }
+                }
+            }
+        }
+    }
+
+    private void collectGranted(Object holder, Map<String, Set<String>> contextPermissions, Set<Finding> removed) {
+        for (String context : contexts(contextPermissions)) {
+            Set<String> permissions = context.isEmpty()
+                ? holder instanceof Group ? ((Group) holder).permissions : ((User) holder).permissions
+                : contextPermissions.get(context);
+            for (String permission : permissions) {
+                if (!permission.startsWith("-") && !removed.contains(new Finding(null, holder, null, null, permission, context, null))) {
+                    this.granted.add(permission);
+                }
+            }
+        }
+    }
+
+    private void addPermanent(List<Group> groups, Map<Group, Long> memberships) {
+        for (Map.Entry<Group, Long> e : memberships.entrySet()) {
+            List<Group> chain = e.getValue() == 0 ? this.chain(e.getKey()) : null;
+            if (chain != null && !groups.contains(e.getKey())) {
+                groups.add(e.getKey());
+            }
+        }
+    }
+
+    private void check(Report report, Object holder, String group, UUID user, String node, String context, List<Group> chain, List<Group> covering) {
+        boolean negation = node.startsWith("-");
+        if (negation && !this.granted.contains(node.substring(1)) && !this.granted.contains("*")) {
+            report.add(new Finding(Finding.Kind.DEAD, holder, group, user, node, context, "nothing grants '" + node.substring(1) + "'"));
+            return;
+        }
+        String source = null;
+        if (!negation) {
+            source = this.find(holder, "-" + node, context, chain, covering, true);
+            if (source != null) {
+                report.add(new Finding(Finding.Kind.SHADOWED, holder, group, user, node, context, "negated by " + source));
+                return;
+            }
+        }
+        source = this.find(holder, node, context, chain, covering, false);
+        if (source != null) {
+            report.add(new Finding(Finding.Kind.REDUNDANT, holder, group, user, node, context, "also granted by " + source));
+        }
+    }
+
+    private String find(Object holder, String node, String context, List<Group> chain, List<Group> covering, boolean sameContext) {
+        Set<String> own = holder instanceof Group ? ((Group) holder).permissions : ((User) holder).permissions;
+        Set<String> ownContext = holder instanceof Group ? ((Group) holder).contextPermissions.get(context) : ((User) holder).contextPermissions.get(context);
+        if (!context.isEmpty() && this.permanent(holder, own, node, Contexts.GLOBAL)
+            || sameContext && ownContext != null && this.permanent(holder, ownContext, node, context)
+            || sameContext && context.isEmpty() && this.permanent(holder, own, node, Contexts.GLOBAL)) {
+            return "itself";
+        }
+        for (Group g : chain) {
+            if (g != holder && this.grants(g, node, context)) {
+                return "group " + g.name;
+            }
+        }
+        for (Group g : covering) {
+            for (Group ancestor : this.chain(g)) {
+                if (this.grants(ancestor, node, context)) {
+                    return "group " + ancestor.name;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean grants(Group group, String node, String context) {
+        if (this.permanent(group, group.permissions, node, Contexts.GLOBAL)) {
+            return true;
+        }
+        Set<String> permissions = context.isEmpty() ? null : group.contextPermissions.get(context);
+        return permissions != null && this.permanent(group, permissions, node, context);
+    }
+
+    private boolean permanent(Object holder, Set<String> permissions, String node, String context) {
+        Map<Expiry, Long> expirations = holder instanceof Group ? ((Group) holder).expirations : ((User) holder).expirations;
+        return permissions.contains(node) && !expirations.containsKey(Expiry.permission(context, node));
+    }
+
+    private List<Group> chain(Group group) {
+        if (this.chains.containsKey(group)) {
+            return this.chains.get(group);
+        }
+        List<Group> chain = new ArrayList<>();
+        for (Group g = group; g != null; g = g.parent()) {
+            if (chain.contains(g) || chain.size() > GroupManager.MAX_DEPTH) {
+                chain = null;
+                break;
+            }
+            chain.add(g);
+        }
+        this.chains.put(group, chain);
+        return chain;
+    }
+
+    private boolean hasMembers(Group group) {
+        Set<Group> subtree = this.permissionManager.groupManager.descendants(group);
+        subtree.add(group);
+        for (Group g : subtree) {
+            if (!this.permissionManager.groupManager.groupUsersCache.getOrDefault(g, Collections.emptyMap()).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long stored(Set<Finding> removed) {
+        long stored = 0;
+        for (Group group : this.permissionManager.groupManager.groups.values()) {
+            stored += count(group, group.permissions, group.contextPermissions, removed);
+        }
+        for (User user : this.permissionManager.userManager.users.values()) {
+            stored += count(user, user.permissions, user.contextPermissions, removed);
+        }
+        return stored;
+    }
+
+    private static long count(Object holder, Set<String> permissions, Map<String, Set<String>> contextPermissions, Set<Finding> removed) {
+        long count = 0;
+        for (String context : contexts(contextPermissions)) {
+            for (String node : context.isEmpty() ? permissions : contextPermissions.get(context)) {
+                if (!removed.contains(new Finding(null, holder, null, null, node, context, null))) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void measure(Report report, Set<Finding> removed, boolean after) {
+        Map<Group, List<String>> inherited = new HashMap<>();
+        long built = 0, distinct = 0;
+        Group defaultGroup = this.permissionManager.getDefaultGroup();
+        for (User user : this.permissionManager.userManager.users.values()) {
+            Set<String> effective = new HashSet<>();
+            List<String> nodes = this.globalNodes(user, user.permissions, removed);
+            built += nodes.size();
+            effective.addAll(nodes);
+            Set<Group> groups = new LinkedHashSet<>();
+            if (defaultGroup != null) {
+                groups.add(defaultGroup);
+            }
+            for (Map.Entry<Group, Long> e : user.groups.entrySet()) {
+                groups.add(e.getKey());
+            }
+            for (Group group : groups) {
+                List<String> chain = inherited.computeIfAbsent(group, g -> this.inherited(g, removed));
+                built += chain.size();
+                effective.addAll(chain);
+            }
+            distinct += effective.size();
+        }
+        if (after) {
+            report.builtAfter = built;
+            report.distinctAfter = distinct;
+        } else {
+            report.builtBefore = built;
+            report.distinctBefore = distinct;
+        }
+    }
+
+    private List<String> inherited(Group group, Set<Finding> removed) {
+        List<String> nodes = new ArrayList<>();
+        int depth = 0;
+        for (Group g = group; g != null && depth <= GroupManager.MAX_DEPTH; g = g.parent(), depth++) {
+            nodes.addAll(this.globalNodes(g, g.permissions, removed));
+        }
+        return nodes;
+    }
+
+    private List<String> globalNodes(Object holder, Set<String> permissions, Set<Finding> removed) {
+        List<String> nodes = new ArrayList<>(permissions.size());
+        for (String node : permissions) {
+            if (removed.isEmpty() || !removed.contains(new Finding(null, holder, null, null, node, Contexts.GLOBAL, null))) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    private boolean isEmpty(Group group) {
+        for (Set<String> permissions : group.contextPermissions.values()) {
+            if (!permissions.isEmpty()) {
+                return false;
+            }
+        }
+        for (Map<String, String> metadata : group.contextMetadata.values()) {
+            if (!metadata.isEmpty()) {
+                return false;
+            }
+        }
+        return group.permissions.isEmpty() && group.metadata.isEmpty()
+            && this.permissionManager.groupManager.children(group.name).isEmpty();
+    }
+
+    private static List<String> contexts(Map<String, Set<String>> contextPermissions) {
+        List<String> contexts = new ArrayList<>();
+        contexts.add(Contexts.GLOBAL);
+        contexts.addAll(contextPermissions.keySet());
+        return contexts;
+    }
+
+    public static class Report {
+        public final List<Finding> findings = new ArrayList<>();
+        public final List<Group> unused = new ArrayList<>();
+        public final List<Group> empty = new ArrayList<>();
+        public int removed, deleted;
+        public long storedBefore, storedAfter, builtBefore, builtAfter, distinctBefore, distinctAfter;
+
+        void add(Finding finding) {
+            this.findings.add(finding);
+        }
+
+        public int count(Finding.Kind kind) {
+            int count = 0;
+            for (Finding finding : this.findings) {
+                if (finding.kind == kind) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    public static class Finding {
+        final Object holder;
+        public final Kind kind;
+        public final String group;
+        public final UUID user;
+        public final String node, context, reason;
+
+        Finding(Kind kind, Object holder, String group, UUID user, String node, String context, String reason) {
+            this.kind = kind;
+            this.holder = holder;
+            this.group = group;
+            this.user = user;
+            this.node = node;
+            this.context = context;
+            this.reason = reason;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Finding)) return false;
+            Finding f = (Finding) o;
+            return this.holder == f.holder && this.node.equals(f.node) && this.context.equals(f.context);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(this.holder), this.node, this.context);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder(this.kind.name().toLowerCase()).append(' ');
+            result.append(this.user != null ? "user " + this.user : "group " + this.group);
+            result.append(' ').append(this.node);
+            if (!this.context.isEmpty()) {
+                result.append(" in ").append(this.context);
+            }
+            return result.append(" (").append(this.reason).append(')').toString();
+        }
+
+        public enum Kind {
+            REDUNDANT, SHADOWED, DEAD
+        }
+    }
+}
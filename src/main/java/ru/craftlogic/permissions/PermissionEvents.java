@@ -0,0 +1,35 @@
+package ru.craftlogic.permissions;
+
+import net.minecraftforge.common.MinecraftForge;
+import ru.craftlogic.permissions.event.PermissionChangeEvent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class PermissionEvents {
+    private final ConcurrentLinkedQueue<PermissionChangeEvent> pending = new ConcurrentLinkedQueue<>();
+
+    public void post(PermissionChangeEvent event) {
+        this.pending.add(event);
+    }
+
+    public void flush() {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+        Map<PermissionChangeEvent, PermissionChangeEvent> batch = new LinkedHashMap<>();
+        PermissionChangeEvent event;
+        while ((event = this.pending.poll()) != null) {
+            PermissionChangeEvent previous = batch.remove(event);
+            batch.put(event, previous != null ? event.coalesce(previous) : event);
+        }
+        for (PermissionChangeEvent e : batch.values()) {
+            MinecraftForge.EVENT_BUS.post(e);
+        }
+    }
+
+    public void clear() {
+        this.pending.clear();
+    }
+}
@@ -3,7 +3,14 @@ package ru.craftlogic.permissions;
 import com.google.common.collect.ImmutableSet;
 import com.google.gson.JsonObject;
 import com.mojang.authlib.GameProfile;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.NetHandlerPlayServer;
 import net.minecraft.util.JsonUtils;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+import net.minecraftforge.fml.common.network.FMLNetworkEvent;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import ru.craftlogic.api.server.Server;
@@ -11,31 +18,66 @@ import ru.craftlogic.api.util.ConfigurableManager;
 import ru.craftlogic.api.world.OfflinePlayer;
 import ru.craftlogic.common.command.CommandManager;
 import ru.craftlogic.permissions.GroupManager.Group;
+import ru.craftlogic.permissions.Snapshots.Change;
+import ru.craftlogic.permissions.Snapshots.Snapshot;
 import ru.craftlogic.permissions.UserManager.User;
+import ru.craftlogic.permissions.audit.AuditLog;
+import ru.craftlogic.permissions.audit.AuditRecord;
+import ru.craftlogic.permissions.audit.AuditRecord.Action;
 import ru.craftlogic.permissions.common.commands.CommandPermission;
+import ru.craftlogic.permissions.event.PermissionChangeEvent;
+import ru.craftlogic.permissions.event.PermissionChangeEvent.GroupChanged;
+import ru.craftlogic.permissions.event.PermissionChangeEvent.GroupDeleted;
+import ru.craftlogic.permissions.event.PermissionChangeEvent.MembershipChanged;
+import ru.craftlogic.permissions.event.PermissionChangeEvent.UserMetadataChanged;
+import ru.craftlogic.permissions.event.PermissionChangeEvent.UserNodeChanged;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PermissionManager extends ConfigurableManager implements ru.craftlogic.api.permission.PermissionManager {
     private static final Logger LOGGER = LogManager.getLogger("PermissionManager");
+    private static final int COMPLETION_LIMIT = 50;
+    private static final int AUDIT_SEGMENTS = 64;
+    public static final String DEFAULT_GROUP = "default";
 
     private final Path configFile;
-    private boolean enabled;
+    private boolean enabled, auditEnabled, backgroundLoad, failClosed;
+    private volatile boolean failed;
+    private volatile boolean usersDirty;
+    private final AtomicBoolean saveQueued = new AtomicBoolean();
+    private final AtomicLong generation = new AtomicLong();
     public final UserManager userManager;
     public final GroupManager groupManager;
+    public final PermissionSync sync;
+    public volatile PrefixIndex groupIndex = new PrefixIndex();
+    public volatile PrefixIndex nodeIndex = new PrefixIndex();
+    public volatile PrefixIndex metadataIndex = new PrefixIndex();
+    public final NameCache names = new NameCache();
+    public final AuditLog audit;
+    public final PermissionEvents events = new PermissionEvents();
+    public final ExpiryIndex expiry = new ExpiryIndex();
+    public final Snapshots snapshots = new Snapshots(this);
+    private ExecutorService loader, compiler;
 
     public PermissionManager(Server server, Path settingsDirectory) {
         super(server, settingsDirectory.resolve("permissions.json"), LOGGER);
         this.configFile = settingsDirectory.resolve("permissions.json");
         this.userManager = new UserManager(this, settingsDirectory.resolve("permissions/users.json"), LOGGER);
         this.groupManager = new GroupManager(this, settingsDirectory.resolve("permissions/groups.json"), LOGGER);
+        this.sync = new PermissionSync(this);
+        this.audit = new AuditLog(settingsDirectory.resolve("permissions/audit"), LOGGER, AUDIT_SEGMENTS);
     }
 
     @Override
     public boolean isEnabled() {
-        return this.enabled;
+        return this.enabled && !this.failed;
     }
 
     @Override
@@ -56,7 +98,16 @@ public class PermissionManager extends ConfigurableManager implements ru.craftlo
     @Override
     public void registerCommands(CommandManager commandManager) {
         commandManager.registerArgumentType("PermGroup", false, ctx ->
-            ((PermissionManager)ctx.server().getPermissionManager()).getAllGroups()
+            ((PermissionManager)ctx.server().getPermissionManager()).groupIndex.complete(ctx.partialName(), COMPLETION_LIMIT)
+        );
+        commandManager.registerArgumentType("PermNode", false, ctx ->
+            ((PermissionManager)ctx.server().getPermissionManager()).nodeIndex.complete(ctx.partialName(), COMPLETION_LIMIT)
+        );
+        commandManager.registerArgumentType("PermMetaKey", false, ctx ->
+            ((PermissionManager)ctx.server().getPermissionManager()).metadataIndex.complete(ctx.partialName(), COMPLETION_LIMIT)
+        );
+        commandManager.registerArgumentType("PermSnapshot", false, ctx ->
+            ((PermissionManager)ctx.server().getPermissionManager()).snapshots.complete(ctx.partialName(), COMPLETION_LIMIT)
         );
         if (server.isDedicated()) {
             commandManager.registerCommand(new CommandPermission());
@@ -66,51 +117,701 @@ public class PermissionManager extends ConfigurableManager implements ru.craftlo
     @Override
     protected void load(JsonObject config) {
         this.enabled = JsonUtils.getBoolean(config, "enabled");
+        this.auditEnabled = JsonUtils.getBoolean(config, "audit", true);
+        this.backgroundLoad = JsonUtils.getBoolean(config, "backgroundLoad", true);
+        this.failClosed = JsonUtils.getBoolean(config, "failClosed", false);
         if (this.enabled) {
+            this.loader = Executors.newSingleThreadExecutor(daemon("Permission loader"));
+            this.compiler = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), daemon("Permission compiler"));
             try {
                 this.groupManager.load();
-                this.userManager.load();
+                if (!this.backgroundLoad) {
+                    this.userManager.load();
+                }
+                if (this.auditEnabled) {
+                    this.audit.start();
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            this.reindex();
+            MinecraftForge.EVENT_BUS.register(this);
+            if (this.backgroundLoad) {
+                long start = System.currentTimeMillis();
+                this.userManager.loadAsync(this.loader).whenComplete((v, t) -> {
+                    if (t != null) {
+                        LOGGER.error("Unable to load users from {}, disabling permissions until the file is fixed and the server is restarted", this.userManager.getConfigFile(), t);
+                        try {
+                            this.unload();
+                        } catch (Exception e) {
+                            LOGGER.error("Unable to unload permissions", e);
+                        }
+                        this.failed = true;
+                    } else if (this.userManager.isLoaded()) {
+                        LOGGER.info("Loaded {} users in {} ms", this.userManager.users.size(), System.currentTimeMillis() - start);
+                        if (this.usersDirty) {
+                            try {
+                                this.save(true);
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                });
+            }
             LOGGER.info("Load complete!");
         }
     }
 
     @Override
     public void unload() throws Exception {
-        if (enabled) {
+        if (this.isEnabled()) {
+            MinecraftForge.EVENT_BUS.unregister(this);
+            this.sync.clear();
+            this.events.clear();
+            this.expiry.clear();
+            this.snapshots.clear();
+            this.names.clear();
+            this.userManager.abortLoading();
+            this.loader.shutdownNow();
+            this.saveQueued.set(false);
+            this.compiler.shutdownNow();
             super.unload();
+            this.audit.stop();
         }
     }
 
     @Override
     protected void save(JsonObject config) {
         config.addProperty("enabled", this.enabled);
+        config.addProperty("audit", this.auditEnabled);
+        config.addProperty("backgroundLoad", this.backgroundLoad);
+        config.addProperty("failClosed", this.failClosed);
         if (this.enabled) {
             try {
                 this.groupManager.save(true);
-                this.userManager.save(true);
+                if (this.userManager.isLoaded()) {
+                    this.usersDirty = false;
+                    this.userManager.save(true);
+                } else {
+                    this.usersDirty = true;
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    private void reindex() {
+        PrefixIndex groups = new PrefixIndex(), nodes = new PrefixIndex(), metadata = new PrefixIndex();
+        this.expiry.clear();
+        for (Group group : this.groupManager.groups.values()) {
+            groups.add(group.name);
+            this.schedule(group, group.expirations);
+            index(nodes, metadata, group.permissions, group.contextPermissions, group.metadata, group.contextMetadata);
+        }
+        for (User user : this.userManager.users.values()) {
+            this.scheduleUser(user, user);
+            index(nodes, metadata, user.permissions, user.contextPermissions, user.metadata, user.contextMetadata);
+        }
+        this.groupIndex = groups;
+        this.nodeIndex = nodes;
+        this.metadataIndex = metadata;
+    }
+
+    void indexUser(User user) {
+        index(this.nodeIndex, this.metadataIndex, user.permissions, user.contextPermissions, user.metadata, user.contextMetadata);
+    }
+
+    void unindexUser(User user) {
+        this.unindex(user.permissions, user.contextPermissions, user.metadata, user.contextMetadata);
+    }
+
+    private void indexGroup(Group group) {
+        index(this.nodeIndex, this.metadataIndex, group.permissions, group.contextPermissions, group.metadata, group.contextMetadata);
+    }
+
+    private void unindexGroup(Group group) {
+        this.unindex(group.permissions, group.contextPermissions, group.metadata, group.contextMetadata);
+    }
+
+    void scheduleUser(User holder, User user) {
+        this.schedule(holder, user.expirations);
+        for (Map.Entry<Group, Long> e : user.groups.entrySet()) {
+            this.expiry.schedule(holder, Expiry.membership(Contexts.GLOBAL, e.getKey()), e.getValue());
+        }
+        for (Map.Entry<String, Map<Group, Long>> c : user.contextGroups.entrySet()) {
+            for (Map.Entry<Group, Long> e : c.getValue().entrySet()) {
+                this.expiry.schedule(holder, Expiry.membership(c.getKey(), e.getKey()), e.getValue());
+            }
+        }
+    }
+
+    private static void index(PrefixIndex nodes, PrefixIndex metadataIndex, Set<String> permissions, Map<String, Set<String>> contextPermissions,
+                              Map<String, String> metadata, Map<String, Map<String, String>> contextMetadata) {
+        for (String permission : permissions) {
+            nodes.add(permission);
+        }
+        for (Set<String> context : contextPermissions.values()) {
+            for (String permission : context) {
+                nodes.add(permission);
+            }
+        }
+        for (String key : metadata.keySet()) {
+            metadataIndex.add(key);
+        }
+        for (Map<String, String> context : contextMetadata.values()) {
+            for (String key : context.keySet()) {
+                metadataIndex.add(key);
+            }
+        }
+    }
+
+    private void schedule(Object holder, Map<Expiry, Long> expirations) {
+        for (Map.Entry<Expiry, Long> e : expirations.entrySet()) {
+            this.expiry.schedule(holder, e.getKey(), e.getValue());
+        }
+    }
+
+    private void unindex(Set<String> permissions, Map<String, Set<String>> contextPermissions,
+                         Map<String, String> metadata, Map<String, Map<String, String>> contextMetadata) {
+        for (String permission : permissions) {
+            this.nodeIndex.remove(permission);
+        }
+        for (Set<String> context : contextPermissions.values()) {
+            for (String permission : context) {
+                this.nodeIndex.remove(permission);
+            }
+        }
+        for (String key : metadata.keySet()) {
+            this.metadataIndex.remove(key);
+        }
+        for (Map<String, String> context : contextMetadata.values()) {
+            for (String key : context.keySet()) {
+                this.metadataIndex.remove(key);
+            }
+        }
+    }
+
+    @SubscribeEvent
+    public void onPlayerConnect(FMLNetworkEvent.ServerConnectionFromClientEvent event) {
+        if (event.getHandler() instanceof NetHandlerPlayServer) {
+            EntityPlayerMP player = ((NetHandlerPlayServer) event.getHandler()).player;
+            this.getUser(player.getUniqueID()).prewarm(Contexts.of(player), this.compiler);
+        }
+    }
+
+    @SubscribeEvent
+    public void onPlayerLogin(PlayerEvent.PlayerLoggedInEvent event) {
+        this.names.update(event.player.getUniqueID(), event.player.getName());
+        this.getUser(event.player.getUniqueID()).setContext(Contexts.of(event.player));
+        if (event.player instanceof EntityPlayerMP) {
+            this.sync.connect((EntityPlayerMP) event.player);
+        }
+    }
+
+    @SubscribeEvent
+    public void onPlayerChangedDimension(PlayerEvent.PlayerChangedDimensionEvent event) {
+        this.getUser(event.player.getUniqueID()).setContext(Contexts.of(event.player));
+        this.sync.update(event.player.getUniqueID());
+    }
+
+    @SubscribeEvent
+    public void onPlayerLogout(PlayerEvent.PlayerLoggedOutEvent event) {
+        UUID id = event.player.getUniqueID();
+        this.getUser(id).setContext(Contexts.GLOBAL);
+        this.userManager.release(id);
+        this.sync.disconnect(id);
+    }
+
+    public long generation() {
+        return this.generation.get();
+    }
+
+    public boolean addMembership(User user, Group group, long expiration, String context) {
+        Map<Group, Long> groups = user.groupsIn(context);
+        synchronized (group) {
+            if (this.groupManager.groups.get(group.name) != group) {
+                return false;
+            }
+            synchronized (user) {
+                if (groups.containsKey(group)) {
+                    return false;
+                }
+                groups.put(group, expiration);
+                this.groupManager.addMember(group, user, expiration);
+            }
+            this.expiry.schedule(user, Expiry.membership(context, group), expiration);
+        }
+        this.userChanged(user, new MembershipChanged(user.id(), group.name, MembershipChanged.Type.ADDED));
+        return true;
+    }
+
+    public boolean removeMembership(User user, Group group, String context) {
+        Map<Group, Long> groups = user.groupsIn(context);
+        synchronized (user) {
+            if (groups.remove(group) == null) {
+                return false;
+            }
+            if (!user.isMemberOf(group)) {
+                this.groupManager.removeMember(group, user);
+            }
+        }
+        this.userChanged(user, new MembershipChanged(user.id(), group.name, MembershipChanged.Type.REMOVED));
+        return true;
+    }
+
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.END) {
+            if (this.expire(System.currentTimeMillis()) > 0) {
+                this.saveLater();
+            }
+            this.sync.flush();
+            this.events.flush();
+            this.names.resolvePending();
+        }
+    }
+
+    private void saveLater() {
+        if (this.saveQueued.compareAndSet(false, true)) {
+            this.loader.execute(() -> {
+                this.saveQueued.set(false);
+                try {
+                    this.save(true);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    public void setExpiration(Object holder, Map<Expiry, Long> expirations, Expiry expiry, long expiration) {
+        if (expiration != 0) {
+            expirations.put(expiry, expiration);
+            this.expiry.schedule(holder, expiry, expiration);
+        } else {
+            expirations.remove(expiry);
+        }
+    }
+
+    public int expire(long now) {
+        int expired = 0;
+        for (ExpiryIndex.Entry entry : this.expiry.poll(now)) {
+            if (entry.holder instanceof User ? this.expire((User) entry.holder, entry) : this.expire((Group) entry.holder, entry)) {
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    private boolean expire(User user, ExpiryIndex.Entry entry) {
+        Expiry expiry = entry.expiry;
+        String context = expiry.context;
+        switch (expiry.kind) {
+            case MEMBERSHIP: {
+                Group group = (Group) expiry.key;
+                synchronized (user) {
+                    if (!user.groupsIn(context).remove(group, entry.expiration)) {
+                        return false;
+                    }
+                    if (!user.isMemberOf(group)) {
+                        this.groupManager.removeMember(group, user);
+                    }
+                }
+                this.audit.log(AuditRecord.user(UserManager.EXPIRY_ACTOR, Action.USER_GROUP_EXPIRE, user.id(), group.name, null, null, context));
+                this.userChanged(user, new MembershipChanged(user.id(), group.name, MembershipChanged.Type.EXPIRED));
+                return true;
+            }
+            case PERMISSION: {
+                String node = (String) expiry.key;
+                synchronized (user) {
+                    if (!user.expirations.remove(expiry, entry.expiration)) {
+                        return false;
+                    }
+                    user.permissionsIn(context).remove(node);
+                }
+                this.nodeIndex.remove(node);
+                this.audit.log(AuditRecord.user(UserManager.EXPIRY_ACTOR, Action.USER_PERMISSION_EXPIRE, user.id(), null, node, null, context));
+                this.userChanged(user, new UserNodeChanged(user.id(), node, context));
+                return true;
+            }
+            case METADATA: {
+                String key = (String) expiry.key;
+                synchronized (user) {
+                    if (!user.expirations.remove(expiry, entry.expiration)) {
+                        return false;
+                    }
+                    user.metadataIn(context).remove(key);
+                }
+                this.metadataIndex.remove(key);
+                this.audit.log(AuditRecord.user(UserManager.EXPIRY_ACTOR, Action.USER_METADATA_EXPIRE, user.id(), null, key, null, context));
+                this.userChanged(user, new UserMetadataChanged(user.id(), key, context));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean expire(Group group, ExpiryIndex.Entry entry) {
+        Expiry expiry = entry.expiry;
+        String key = (String) expiry.key;
+        synchronized (group) {
+            if (this.groupManager.groups.get(group.name) != group || !group.expirations.remove(expiry, entry.expiration)) {
+                return false;
+            }
+            if (expiry.kind == Expiry.Kind.PERMISSION) {
+                group.permissionsIn(expiry.context).remove(key);
+            } else {
+                group.metadataIn(expiry.context).remove(key);
+            }
+        }
+        if (expiry.kind == Expiry.Kind.PERMISSION) {
+            this.nodeIndex.remove(key);
+            this.audit.log(AuditRecord.group(UserManager.EXPIRY_ACTOR, Action.GROUP_PERMISSION_EXPIRE, group.name, key, null, expiry.context));
+            this.groupChanged(group, GroupChanged.Type.NODE, key);
+        } else {
+            this.metadataIndex.remove(key);
+            this.audit.log(AuditRecord.group(UserManager.EXPIRY_ACTOR, Action.GROUP_METADATA_EXPIRE, group.name, key, null, expiry.context));
+            this.groupChanged(group, GroupChanged.Type.METADATA, key);
+        }
+        return true;
+    }
+
+    public void userChanged(User user, PermissionChangeEvent event) {
+        user.invalidate();
+        this.sync.update(user.id());
+        this.events.post(event);
+    }
+
+    public void groupChanged(Group group, GroupChanged.Type type, String key) {
+        this.groupManager.markDirty(group);
+        if (type == GroupChanged.Type.NAME) {
+            this.invalidateMembers(group);
+        }
+        boolean everyone = this.affectsEveryone(group);
+        Set<UUID> affected = everyone ? Collections.emptySet() : this.getAffectedUsers(group);
+        this.generation.incrementAndGet();
+        this.updateSync(affected, everyone);
+        this.events.post(new GroupChanged(group.name, type, key, affected, everyone));
+    }
+
+    private void invalidateMembers(Group group) {
+        Map<User, Long> members = this.groupManager.groupUsersCache.get(group);
+        if (members != null) {
+            for (User user : members.keySet()) {
+                user.invalidate();
+            }
+        }
+    }
+
+    private void updateSync(Set<UUID> affected, boolean everyone) {
+        if (everyone) {
+            this.sync.updateAll();
+        } else {
+            for (UUID id : affected) {
+                this.sync.update(id);
+            }
+        }
+    }
+
+    public boolean affectsEveryone(Group group) {
+        return group.name.equals(this.getDefaultGroupName());
+    }
+
+    public Set<UUID> getAffectedUsers(Group group) {
+        Set<UUID> affected = new HashSet<>();
+        Set<Group> groups = this.groupManager.descendants(group);
+        groups.add(group);
+        for (Group g : groups) {
+            Map<User, Long> members = this.groupManager.groupUsersCache.get(g);
+            if (members != null) {
+                for (User user : members.keySet()) {
+                    affected.add(user.id());
+                }
+            }
+        }
+        return affected;
+    }
+
+    public void groupCreated(Group group) {
+        this.groupManager.addChild(group);
+        this.groupIndex.add(group.name);
+        this.indexGroup(group);
+    }
+
+    public boolean deleteGroup(Group group) {
+        boolean everyone = this.affectsEveryone(group);
+        Set<UUID> affected = everyone ? Collections.emptySet() : this.getAffectedUsers(group);
+        List<Group> children = new ArrayList<>();
+        synchronized (group) {
+            if (!this.groupManager.groups.remove(group.name, group)) {
+                return false;
+            }
+            Group parent = group.parent();
+            String fallback = parent != null ? parent.name : this.getDefaultGroupName();
+            this.groupManager.removeChild(group);
+            children.addAll(this.groupManager.children(group.name));
+            for (Group child : children) {
+                this.groupManager.setParent(child, fallback);
+            }
+            Map<User, Long> members = this.groupManager.groupUsersCache.remove(group);
+            if (members != null) {
+                for (User user : members.keySet()) {
+                    synchronized (user) {
+                        user.groups.remove(group);
+                        for (Map<Group, Long> groups : user.contextGroups.values()) {
+                            groups.remove(group);
+                        }
+                    }
+                    user.invalidate();
+                }
+            }
+        }
+        this.groupIndex.remove(group.name);
+        this.unindexGroup(group);
+        this.generation.incrementAndGet();
+        this.updateSync(affected, everyone);
+        this.events.post(new GroupDeleted(group.name, affected, everyone));
+        for (Group child : children) {
+            this.events.post(new GroupChanged(child.name, GroupChanged.Type.PARENT, child.parent, this.getAffectedUsers(child), false));
+        }
+        return true;
+    }
+
+    public boolean renameGroup(Group group, String name) {
+        String oldName;
+        synchronized (group) {
+            oldName = group.name;
+            if (this.groupManager.groups.get(oldName) != group || this.affectsEveryone(group)
+                || this.groupManager.groups.putIfAbsent(name, group) != null) {
+                return false;
+            }
+            this.groupManager.groups.remove(oldName, group);
+            this.groupManager.setName(group, name);
+            for (Group child : new ArrayList<>(this.groupManager.children(oldName))) {
+                this.groupManager.setParent(child, name);
+            }
+        }
+        this.groupIndex.remove(oldName);
+        this.groupIndex.add(group.name);
+        this.invalidateMembers(group);
+        Set<UUID> affected = this.getAffectedUsers(group);
+        this.generation.incrementAndGet();
+        this.updateSync(affected, false);
+        this.events.post(new GroupChanged(group.name, GroupChanged.Type.NAME, oldName, affected, false));
+        return true;
+    }
+
+    public List<Change> rollback(Snapshot snapshot, String actor) {
+        synchronized (this.snapshots) {
+            Snapshots.State current = this.snapshots.capture(snapshot, new Snapshots.State());
+            List<Change> changes = Snapshots.changes(snapshot, current);
+            if (changes.isEmpty()) {
+                return changes;
+            }
+            this.snapshots.create(Snapshots.UNDO, actor);
+            Map<String, Set<UUID>> dropped = new LinkedHashMap<>();
+            for (Group group : current.groups.keySet()) {
+                if (!snapshot.groups.containsKey(group)) {
+                    Set<UUID> affected = this.getAffectedUsers(group);
+                    synchronized (group) {
+                        if (this.groupManager.groups.remove(group.name, group)) {
+                            this.groupManager.groupUsersCache.remove(group);
+                            this.groupManager.removeChild(group);
+                            this.groupIndex.remove(group.name);
+                            this.unindexGroup(group);
+                            dropped.put(group.name, affected);
+                        }
+                    }
+                }
+            }
+            for (Map.Entry<Group, Snapshots.GroupImage> e : snapshot.groups.entrySet()) {
+                Group group = e.getKey();
+                Snapshots.GroupImage image = e.getValue();
+                if (current.groups.get(group) != image) {
+                    synchronized (group) {
+                        image.index(this.nodeIndex, this.metadataIndex);
+                        if (this.groupManager.groups.remove(group.name, group)) {
+                            this.groupManager.removeChild(group);
+                            this.groupIndex.remove(group.name);
+                            this.unindexGroup(group);
+                        }
+                        image.restore(group);
+                        this.groupManager.markDirty(group);
+                        this.groupManager.groups.put(group.name, group);
+                        this.groupManager.addChild(group);
+                        this.groupIndex.add(group.name);
+                        this.schedule(group, group.expirations);
+                    }
+                }
+            }
+            for (Map.Entry<UUID, Snapshots.UserImage> e : snapshot.users.entrySet()) {
+                if (current.users.get(e.getKey()) != e.getValue()) {
+                    this.restore(this.getUser(e.getKey()), e.getValue());
+                }
+            }
+            for (UUID id : current.users.keySet()) {
+                User user = this.userManager.users.get(id);
+                if (user != null && !snapshot.users.containsKey(id)) {
+                    this.restore(user, Snapshots.UserImage.EMPTY);
+                }
+            }
+            for (Map.Entry<String, Set<UUID>> e : dropped.entrySet()) {
+                this.generation.incrementAndGet();
+                this.updateSync(e.getValue(), false);
+                this.events.post(new GroupDeleted(e.getKey(), e.getValue(), false));
+            }
+            for (Change change : changes) {
+                this.publish(change);
+            }
+            return changes;
+        }
+    }
+
+    private void restore(User user, Snapshots.UserImage image) {
+        synchronized (user) {
+            this.unlink(user);
+            image.index(this.nodeIndex, this.metadataIndex);
+            this.unindexUser(user);
+            image.restore(user);
+            user.invalidate();
+            for (Map.Entry<Group, Long> e : user.groups.entrySet()) {
+                this.groupManager.addMember(e.getKey(), user, e.getValue());
+            }
+            for (Map<Group, Long> groups : user.contextGroups.values()) {
+                for (Map.Entry<Group, Long> e : groups.entrySet()) {
+                    this.groupManager.addMember(e.getKey(), user, e.getValue());
+                }
+            }
+            this.scheduleUser(user, user);
+        }
+    }
+
+    private void unlink(User user) {
+        for (Group group : user.groups.keySet()) {
+            this.groupManager.removeMember(group, user);
+        }
+        for (Map<Group, Long> groups : user.contextGroups.values()) {
+            for (Group group : groups.keySet()) {
+                this.groupManager.removeMember(group, user);
+            }
+        }
+    }
+
+    public Optimizer.Report optimize(boolean apply, String actor) {
+        synchronized (this.snapshots) {
+            Optimizer.Report report = new Optimizer(this).analyze();
+            if (!apply || report.findings.isEmpty() && report.empty.isEmpty()) {
+                return report;
+            }
+            this.snapshots.create(Optimizer.SNAPSHOT, actor);
+            for (Optimizer.Finding finding : report.findings) {
+                if (finding.holder instanceof Group) {
+                    Group group = (Group) finding.holder;
+                    boolean removed;
+                    synchronized (group) {
+                        removed = group.permissionsIn(finding.context).remove(finding.node);
+                    }
+                    if (removed) {
+                        this.nodeIndex.remove(finding.node);
+                        this.audit.log(AuditRecord.group(actor, Action.GROUP_PERMISSION_REMOVE, group.name, finding.node, null, finding.context));
+                        this.groupChanged(group, GroupChanged.Type.NODE, finding.node);
+                        report.removed++;
+                    }
+                } else {
+                    User user = (User) finding.holder;
+                    boolean removed;
+                    synchronized (user) {
+                        removed = user.permissionsIn(finding.context).remove(finding.node);
+                    }
+                    if (removed) {
+                        this.nodeIndex.remove(finding.node);
+                        this.audit.log(AuditRecord.user(actor, Action.USER_PERMISSION_REMOVE, user.id, null, finding.node, null, finding.context));
+                        this.userChanged(user, new UserNodeChanged(user.id, finding.node, finding.context));
+                        report.removed++;
+                    }
+                }
+            }
+            for (Group group : report.empty) {
+                if (this.deleteGroup(group)) {
+                    this.audit.log(AuditRecord.group(actor, Action.GROUP_DELETE, group.name, null, null, null));
+                    report.deleted++;
+                }
+            }
+            return report;
+        }
+    }
+
+    private void publish(Change change) {
+        if (change.user != null) {
+            User user = this.getUser(change.user);
+            String context = change.context;
+            switch (change.type) {
+                case MEMBERSHIP:
+                    this.userChanged(user, new MembershipChanged(change.user, change.key, change.before != null ? MembershipChanged.Type.ADDED : MembershipChanged.Type.REMOVED));
+                    break;
+                case METADATA:
+                case METADATA_EXPIRY:
+                    this.userChanged(user, new UserMetadataChanged(change.user, change.key, context));
+                    break;
+                default:
+                    this.userChanged(user, new UserNodeChanged(change.user, change.key, context));
+                    break;
+            }
+        } else if (change.before != null || change.type != Change.Type.GROUP) {
+            Group group = (Group) change.holder;
+            switch (change.type) {
+                case GROUP:
+                case PARENT:
+                    this.groupChanged(group, GroupChanged.Type.PARENT, group.parent);
+                    break;
+                case NAME:
+                    this.groupChanged(group, GroupChanged.Type.NAME, change.after);
+                    break;
+                case PRIORITY:
+                    this.groupChanged(group, GroupChanged.Type.PRIORITY, null);
+                    break;
+                case METADATA:
+                case METADATA_EXPIRY:
+                    this.groupChanged(group, GroupChanged.Type.METADATA, change.key);
+                    break;
+                default:
+                    this.groupChanged(group, GroupChanged.Type.NODE, change.key);
+                    break;
+            }
+        }
+    }
+
     @Override
     public boolean hasPermissions(GameProfile profile, Collection<String> permissions) {
-        User user = this.userManager.getUser(profile.getId());
-        return user.hasPermissions(permissions);
+        User user = this.getCheckedUser(profile.getId());
+        return user != null && user.hasPermissions(permissions);
     }
 
     @Override
     public String getPermissionMetadata(GameProfile profile, String meta) {
-        User user = this.userManager.getUser(profile.getId());
-        return user.getPermissionMetadata(meta);
+        User user = this.getCheckedUser(profile.getId());
+        return user != null ? user.getPermissionMetadata(meta) : null;
+    }
+
+    private User getCheckedUser(UUID id) {
+        if (this.failClosed && !this.userManager.isLoaded() && !this.userManager.isLoaded(id)) {
+            return null;
+        }
+        return this.userManager.getUser(id);
+    }
+
+    public boolean isReady() {
+        return this.userManager.isLoaded();
+    }
+
+    public PermissionView.Explanation explain(User user, String permission, String context) {
+        return user.view(context).explain(permission);
     }
 
     public String getDefaultGroupName() {
-        return "default";
+        return DEFAULT_GROUP;
     }
 
     public Group getDefaultGroup() {
@@ -140,4 +841,12 @@ public class PermissionManager extends ConfigurableManager implements ru.craftlo
     public User getUser(UUID id) {
         return this.userManager.getUser(id);
     }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
 }
@@ -0,0 +1,111 @@
+package ru.craftlogic.permissions;
+
+import net.minecraft.entity.player.EntityPlayerMP;
+import ru.craftlogic.permissions.network.MessagePermissions;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class PermissionSync {
+    private final PermissionManager permissionManager;
+    private final Map<UUID, Synced> synced = new ConcurrentHashMap<>();
+    private final Queue<UUID> scheduled = new ConcurrentLinkedQueue<>();
+
+    public PermissionSync(PermissionManager permissionManager) {
+        this.permissionManager = permissionManager;
+    }
+
+    public void connect(EntityPlayerMP player) {
+        PermissionView view = this.permissionManager.getUser(player.getUniqueID()).view();
+        Synced s = new Synced(player, view.permissions(), view.metadata());
+        this.synced.put(player.getUniqueID(), s);
+        for (MessagePermissions message : MessagePermissions.snapshot(s.permissions, s.metadata)) {
+            CraftPermissions.NETWORK.sendTo(player, message);
+        }
+    }
+
+    public void disconnect(UUID id) {
+        this.synced.remove(id);
+    }
+
+    public void clear() {
+        this.synced.clear();
+        this.scheduled.clear();
+    }
+
+    public void schedule(UUID id) {
+        this.scheduled.add(id);
+    }
+
+    public void flush() {
+        UUID id;
+        while ((id = this.scheduled.poll()) != null) {
+            this.update(id);
+        }
+    }
+
+    public void update(UUID id) {
+        Synced s = this.synced.get(id);
+        if (s != null) {
+            update(s);
+        }
+    }
+
+    public void updateAll() {
+        for (Synced s : this.synced.values()) {
+            update(s);
+        }
+    }
+
+    private void update(Synced s) {
+        PermissionView view = this.permissionManager.getUser(s.player.getUniqueID()).view();
+        Set<String> permissions = view.permissions();
+        Map<String, String> metadata = view.metadata();
+
+        List<String> granted = new ArrayList<>();
+        for (String p : permissions) {
+            if (!s.permissions.contains(p)) {
+                granted.add(p);
+            }
+        }
+        List<String> revoked = new ArrayList<>();
+        for (String p : s.permissions) {
+            if (!permissions.contains(p)) {
+                revoked.add(p);
+            }
+        }
+        Map<String, String> metadataSet = new HashMap<>();
+        for (Map.Entry<String, String> e : metadata.entrySet()) {
+            if (!e.getValue().equals(s.metadata.get(e.getKey()))) {
+                metadataSet.put(e.getKey(), e.getValue());
+            }
+        }
+        List<String> metadataUnset = new ArrayList<>();
+        for (String key : s.metadata.keySet()) {
+            if (!metadata.containsKey(key)) {
+                metadataUnset.add(key);
+            }
+        }
+
+        if (!granted.isEmpty() || !revoked.isEmpty() || !metadataSet.isEmpty() || !metadataUnset.isEmpty()) {
+            s.permissions = permissions;
+            s.metadata = metadata;
+            for (MessagePermissions message : MessagePermissions.delta(granted, revoked, metadataSet, metadataUnset)) {
+                CraftPermissions.NETWORK.sendTo(s.player, message);
+            }
+        }
+    }
+
+    private static class Synced {
+        final EntityPlayerMP player;
+        Set<String> permissions;
+        Map<String, String> metadata;
+
+        Synced(EntityPlayerMP player, Set<String> permissions, Map<String, String> metadata) {
+            this.player = player;
+            this.permissions = permissions;
+            this.metadata = metadata;
+        }
+    }
+}
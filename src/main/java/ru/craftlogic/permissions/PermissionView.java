@@ -0,0 +1,106 @@
+package ru.craftlogic.permissions;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+public class PermissionView {
+    public final String context;
+    final long generation, revision, validUntil;
+    private final Map<String, Grant> grants;
+    private final Set<String> permissions;
+    private final Map<String, String> metadata;
+    private final boolean wildcard;
+
+    PermissionView(String context, long generation, long revision, long validUntil, Map<String, Grant> grants, Map<String, String> metadata) {
+        this.context = context;
+        this.generation = generation;
+        this.revision = revision;
+        this.validUntil = validUntil;
+        this.grants = grants;
+        this.permissions = Collections.unmodifiableSet(grants.keySet());
+        this.metadata = metadata;
+        this.wildcard = grants.containsKey("*");
+    }
+
+    static void grant(Map<String, Grant> grants, Collection<String> permissions, String source, int depth, String context) {
+        for (String permission : permissions) {
+            Grant existing = grants.get(permission);
+            if (existing == null || existing.depth > depth) {
+                grants.put(permission, new Grant(permission, source, depth, context));
+            }
+        }
+    }
+
+    boolean isValid(long generation, long revision, long now) {
+        return this.generation == generation && this.revision == revision && now <= this.validUntil;
+    }
+
+    public Set<String> permissions() {
+        return this.permissions;
+    }
+
+    boolean hasWildcard() {
+        return this.wildcard;
+    }
+
+    public Map<String, String> metadata() {
+        return this.metadata;
+    }
+
+    public boolean hasPermissions(Collection<String> permissions) {
+        if (permissions.isEmpty()) {
+            return true;
+        }
+        for (String permission : permissions) {
+            if (this.grants.containsKey("-" + permission))
+                return false;
+        }
+        if (this.wildcard) {
+            return true;
+        }
+        for (String permission : permissions) {
+            if (!this.grants.containsKey(permission))
+                return false;
+        }
+        return true;
+    }
+
+    public Explanation explain(String permission) {
+        Grant negation = this.grants.get("-" + permission);
+        Grant wildcard = this.grants.get("*");
+        Grant grant = this.grants.get(permission);
+        return new Explanation(permission, negation == null && (wildcard != null || grant != null), negation, wildcard, grant);
+    }
+
+    public String getPermissionMetadata(String meta) {
+        return this.metadata.get(meta);
+    }
+
+    public static class Grant {
+        public final String node, source, context;
+        public final int depth;
+
+        Grant(String node, String source, int depth, String context) {
+            this.node = node;
+            this.source = source;
+            this.depth = depth;
+            this.context = context;
+        }
+    }
+
+    public static class Explanation {
+        public final String permission;
+        public final boolean allowed;
+        public final Grant negation, wildcard, grant;
+
+        Explanation(String permission, boolean allowed, Grant negation, Grant wildcard, Grant grant) {
+            this.permission = permission;
+            this.allowed = allowed;
+            this.negation = negation;
+            this.wildcard = wildcard;
+            this.grant = grant;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package ru.craftlogic.permissions;
+
+import ru.craftlogic.permissions.util.BloomFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+public class PrefixIndex {
+    private static final int FILTER_CAPACITY = 1024;
+
+    private final ConcurrentSkipListMap<String, Integer> entries = new ConcurrentSkipListMap<>();
+    private volatile BloomFilter filter = new BloomFilter(FILTER_CAPACITY);
+
+    public synchronized void add(String value) {
+        if (this.entries.merge(value, 1, Integer::sum) == 1) {
+            BloomFilter filter = this.filter;
+            filter.put(value);
+            if (filter.isFull()) {
+                filter = new BloomFilter(Math.max(FILTER_CAPACITY, this.entries.size() * 2));
+                for (String key : this.entries.keySet()) {
+                    filter.put(key);
+                }
+                this.filter = filter;
+            }
+        }
+    }
+
+    public void remove(String value) {
+        this.entries.computeIfPresent(value, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    public boolean contains(String value) {
+        return this.filter.mightContain(value) && this.entries.containsKey(value);
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public List<String> complete(String prefix, int limit) {
+        List<String> result = new ArrayList<>(Math.min(limit, 16));
+        for (Map.Entry<String, Integer> e : this.entries.tailMap(prefix, true).entrySet()) {
+            String value = e.getKey();
+            if (result.size() >= limit || !value.startsWith(prefix)) {
+                break;
+            }
+            result.add(value);
+        }
+        return result;
+    }
+}
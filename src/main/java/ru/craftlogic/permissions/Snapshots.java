@@ -0,0 +1,403 @@
+package ru.craftlogic.permissions;
+
+import ru.craftlogic.permissions.GroupManager.Group;
+import ru.craftlogic.permissions.UserManager.User;
+import ru.craftlogic.permissions.util.CompactLongMap;
+import ru.craftlogic.permissions.util.CompactStringMap;
+import ru.craftlogic.permissions.util.CompactStringSet;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+public class Snapshots {
+    public static final int MAX_SNAPSHOTS = 16;
+    public static final String UNDO = "undo";
+
+    private final PermissionManager permissionManager;
+    private final Map<String, Snapshot> snapshots = new LinkedHashMap<>();
+    private Snapshot latest;
+
+    Snapshots(PermissionManager permissionManager) {
+        this.permissionManager = permissionManager;
+    }
+
+    public synchronized Snapshot create(String name, String actor) {
+        Snapshot snapshot = this.capture(this.latest, new Snapshot(name, actor, System.currentTimeMillis()));
+        this.snapshots.remove(name);
+        this.snapshots.put(name, snapshot);
+        if (this.snapshots.size() > MAX_SNAPSHOTS) {
+            Iterator<Snapshot> iterator = this.snapshots.values().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        this.latest = snapshot;
+        return snapshot;
+    }
+
+    public synchronized Snapshot get(String name) {
+        return this.snapshots.get(name);
+    }
+
+    public synchronized List<Snapshot> list() {
+        return new ArrayList<>(this.snapshots.values());
+    }
+
+    public synchronized List<String> complete(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        for (String name : this.snapshots.keySet()) {
+            if (name.startsWith(prefix) && result.size() < limit) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    public synchronized void clear() {
+        this.snapshots.clear();
+        this.latest = null;
+    }
+
+    public List<Change> diff(Snapshot snapshot) {
+        return changes(snapshot, this.capture(snapshot, new State()));
+    }
+
+    <S extends State> S capture(State base, S state) {
+        for (Group group : this.permissionManager.groupManager.groups.values()) {
+            GroupImage image = base != null ? base.groups.get(group) : null;
+            synchronized (group) {
+                if (image == null || !image.matches(group)) {
+                    image = new GroupImage(group);
+                    state.captured++;
+                }
+            }
+            state.groups.put(group, image);
+        }
+        for (User user : this.permissionManager.userManager.users.values()) {
+            UserImage image = base != null ? base.users.get(user.id) : null;
+            synchronized (user) {
+                if (image == null || !image.matches(user)) {
+                    if (user.isEmpty()) {
+                        continue;
+                    }
+                    image = new UserImage(user);
+                    state.captured++;
+                }
+            }
+            state.users.put(user.id, image);
+        }
+        return state;
+    }
+
+    static List<Change> changes(State before, State after) {
+        List<Change> changes = new ArrayList<>();
+        Set<Group> groups = new LinkedHashSet<>(before.groups.keySet());
+        groups.addAll(after.groups.keySet());
+        for (Group group : groups) {
+            GroupImage a = before.groups.get(group), b = after.groups.get(group);
+            if (a == b) {
+                continue;
+            }
+            if (a == null || b == null) {
+                changes.add(new Change(group, (a != null ? a : b).name, null, Change.Type.GROUP, null, null, a != null ? a.name : null, b != null ? b.name : null));
+                continue;
+            }
+            String name = b.name;
+            if (!a.name.equals(b.name)) {
+                changes.add(new Change(group, name, null, Change.Type.NAME, null, null, a.name, b.name));
+            }
+            if (!a.parent.equals(b.parent)) {
+                changes.add(new Change(group, name, null, Change.Type.PARENT, null, null, a.parent, b.parent));
+            }
+            if (a.priority != b.priority) {
+                changes.add(new Change(group, name, null, Change.Type.PRIORITY, null, null, String.valueOf(a.priority), String.valueOf(b.priority)));
+            }
+            a.changes(b, group, name, null, changes);
+        }
+        Set<UUID> users = new LinkedHashSet<>(before.users.keySet());
+        users.addAll(after.users.keySet());
+        for (UUID id : users) {
+            UserImage a = before.users.get(id), b = after.users.get(id);
+            if (a != b) {
+                (a != null ? a : UserImage.EMPTY).changes(b != null ? b : UserImage.EMPTY, null, null, id, changes);
+            }
+        }
+        return changes;
+    }
+
+    private static <T, C> Map<String, C> copy(T global, Map<String, T> contexts, Function<T, C> copy) {
+        Map<String, C> result = new HashMap<>();
+        if (!isEmpty(global)) {
+            result.put(Contexts.GLOBAL, copy.apply(global));
+        }
+        for (Map.Entry<String, T> e : contexts.entrySet()) {
+            if (!isEmpty(e.getValue())) {
+                result.put(e.getKey(), copy.apply(e.getValue()));
+            }
+        }
+        return result;
+    }
+
+    private static <T, C> boolean shares(Map<String, C> image, T global, Map<String, T> contexts, BiPredicate<T, C> shares) {
+        int size = 0;
+        if (!isEmpty(global)) {
+            C copy = image.get(Contexts.GLOBAL);
+            if (copy == null || !shares.test(global, copy)) {
+                return false;
+            }
+            size++;
+        }
+        for (Map.Entry<String, T> e : contexts.entrySet()) {
+            if (!isEmpty(e.getValue())) {
+                C copy = image.get(e.getKey());
+                if (copy == null || !shares.test(e.getValue(), copy)) {
+                    return false;
+                }
+                size++;
+            }
+        }
+        return size == image.size();
+    }
+
+    private static <T, C> void restoreContexts(Map<String, C> image, T global, Map<String, T> contexts, Function<String, T> in, BiConsumer<T, C> restore) {
+        if (!image.containsKey(Contexts.GLOBAL)) {
+            clear(global);
+        }
+        contexts.keySet().retainAll(image.keySet());
+        for (Map.Entry<String, C> e : image.entrySet()) {
+            restore.accept(in.apply(e.getKey()), e.getValue());
+        }
+    }
+
+    private static boolean isEmpty(Object entries) {
+        return entries instanceof Collection ? ((Collection<?>) entries).isEmpty() : ((Map<?, ?>) entries).isEmpty();
+    }
+
+    private static void clear(Object entries) {
+        if (entries instanceof Collection) {
+            ((Collection<?>) entries).clear();
+        } else {
+            ((Map<?, ?>) entries).clear();
+        }
+    }
+
+    private static <K> Set<K> union(Map<K, ?> a, Map<K, ?> b) {
+        Set<K> keys = new LinkedHashSet<>(a.keySet());
+        keys.addAll(b.keySet());
+        return keys;
+    }
+
+    static class State {
+        final Map<Group, GroupImage> groups = new HashMap<>();
+        final Map<UUID, UserImage> users = new HashMap<>();
+        int captured;
+    }
+
+    public static class Snapshot extends State {
+        public final String name, actor;
+        public final long time;
+
+        Snapshot(String name, String actor, long time) {
+            this.name = name;
+            this.actor = actor;
+            this.time = time;
+        }
+
+        public int groupCount() {
+            return this.groups.size();
+        }
+
+        public int userCount() {
+            return this.users.size();
+        }
+
+        public int capturedCount() {
+            return this.captured;
+        }
+    }
+
+    static class HolderImage {
+        final Map<String, CompactStringSet> permissions;
+        final Map<String, CompactStringMap> metadata;
+        final CompactLongMap<Expiry> expirations;
+
+        HolderImage(Set<String> permissions, Map<String, Set<String>> contextPermissions, Map<String, String> metadata, Map<String, Map<String, String>> contextMetadata, Map<Expiry, Long> expirations) {
+            this.permissions = copy(permissions, contextPermissions, p -> ((CompactStringSet) p).copy());
+            this.metadata = copy(metadata, contextMetadata, m -> ((CompactStringMap) m).copy());
+            this.expirations = ((CompactLongMap<Expiry>) expirations).copy();
+        }
+
+        boolean matches(Set<String> permissions, Map<String, Set<String>> contextPermissions, Map<String, String> metadata, Map<String, Map<String, String>> contextMetadata, Map<Expiry, Long> expirations) {
+            return ((CompactLongMap<Expiry>) expirations).shares(this.expirations)
+                && shares(this.permissions, permissions, contextPermissions, (p, c) -> ((CompactStringSet) p).shares(c))
+                && shares(this.metadata, metadata, contextMetadata, (m, c) -> ((CompactStringMap) m).shares(c));
+        }
+
+        void restore(Set<String> permissions, Map<String, Set<String>> contextPermissions, Function<String, Set<String>> permissionsIn,
+                     Map<String, String> metadata, Map<String, Map<String, String>> contextMetadata, Function<String, Map<String, String>> metadataIn,
+                     Map<Expiry, Long> expirations) {
+            restoreContexts(this.permissions, permissions, contextPermissions, permissionsIn, (p, c) -> ((CompactStringSet) p).restore(c));
+            restoreContexts(this.metadata, metadata, contextMetadata, metadataIn, (m, c) -> ((CompactStringMap) m).restore(c));
+            ((CompactLongMap<Expiry>) expirations).restore(this.expirations);
+        }
+
+        void index(PrefixIndex nodes, PrefixIndex metadataIndex) {
+            for (CompactStringSet permissions : this.permissions.values()) {
+                for (String permission : permissions) {
+                    nodes.add(permission);
+                }
+            }
+            for (CompactStringMap metadata : this.metadata.values()) {
+                for (String key : metadata.keySet()) {
+                    metadataIndex.add(key);
+                }
+            }
+        }
+
+        void changes(HolderImage after, Object holder, String group, UUID user, List<Change> changes) {
+            for (String context : union(this.permissions, after.permissions)) {
+                CompactStringSet a = this.permissions.get(context), b = after.permissions.get(context);
+                if (a != null && b != null && a.shares(b)) {
+                    continue;
+                }
+                for (String permission : a != null ? a : Collections.<String>emptySet()) {
+                    if (b == null || !b.contains(permission)) {
+                        changes.add(new Change(holder, group, user, Change.Type.PERMISSION, permission, context, permission, null));
+                    }
+                }
+                for (String permission : b != null ? b : Collections.<String>emptySet()) {
+                    if (a == null || !a.contains(permission)) {
+                        changes.add(new Change(holder, group, user, Change.Type.PERMISSION, permission, context, null, permission));
+                    }
+                }
+            }
+            for (String context : union(this.metadata, after.metadata)) {
+                Map<String, String> a = this.metadata.getOrDefault(context, new CompactStringMap());
+                Map<String, String> b = after.metadata.getOrDefault(context, new CompactStringMap());
+                for (String key : union(a, b)) {
+                    if (!Objects.equals(a.get(key), b.get(key))) {
+                        changes.add(new Change(holder, group, user, Change.Type.METADATA, key, context, a.get(key), b.get(key)));
+                    }
+                }
+            }
+            if (!this.expirations.shares(after.expirations)) {
+                for (Expiry expiry : union(this.expirations, after.expirations)) {
+                    Long a = this.expirations.get(expiry), b = after.expirations.get(expiry);
+                    if (!Objects.equals(a, b)) {
+                        Change.Type type = expiry.kind == Expiry.Kind.PERMISSION ? Change.Type.PERMISSION_EXPIRY : Change.Type.METADATA_EXPIRY;
+                        changes.add(new Change(holder, group, user, type, (String) expiry.key, expiry.context, a != null ? a.toString() : null, b != null ? b.toString() : null));
+                    }
+                }
+            }
+        }
+    }
+
+    static final class GroupImage extends HolderImage {
+        final String name, parent;
+        final int priority;
+
+        GroupImage(Group group) {
+            super(group.permissions, group.contextPermissions, group.metadata, group.contextMetadata, group.expirations);
+            this.name = group.name;
+            this.parent = group.parent;
+            this.priority = group.priority;
+        }
+
+        boolean matches(Group group) {
+            return this.name.equals(group.name) && this.parent.equals(group.parent) && this.priority == group.priority
+                && this.matches(group.permissions, group.contextPermissions, group.metadata, group.contextMetadata, group.expirations);
+        }
+
+        void restore(Group group) {
+            group.name = this.name;
+            group.parent = this.parent;
+            group.priority = this.priority;
+            this.restore(group.permissions, group.contextPermissions, group::permissionsIn, group.metadata, group.contextMetadata, group::metadataIn, group.expirations);
+        }
+    }
+
+    static final class UserImage extends HolderImage {
+        static final UserImage EMPTY = new UserImage();
+
+        final Map<String, CompactLongMap<Group>> groups;
+
+        UserImage(User user) {
+            super(user.permissions, user.contextPermissions, user.metadata, user.contextMetadata, user.expirations);
+            this.groups = copy(user.groups, user.contextGroups, g -> ((CompactLongMap<Group>) g).copy());
+        }
+
+        private UserImage() {
+            super(Collections.emptySet(), Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap(), new CompactLongMap<>());
+            this.groups = Collections.emptyMap();
+        }
+
+        boolean matches(User user) {
+            return shares(this.groups, user.groups, user.contextGroups, (g, c) -> ((CompactLongMap<Group>) g).shares(c))
+                && this.matches(user.permissions, user.contextPermissions, user.metadata, user.contextMetadata, user.expirations);
+        }
+
+        void restore(User user) {
+            restoreContexts(this.groups, user.groups, user.contextGroups, user::groupsIn, (g, c) -> ((CompactLongMap<Group>) g).restore(c));
+            this.restore(user.permissions, user.contextPermissions, user::permissionsIn, user.metadata, user.contextMetadata, user::metadataIn, user.expirations);
+        }
+
+        @Override
+        void changes(HolderImage after, Object holder, String group, UUID user, List<Change> changes) {
+            Map<String, CompactLongMap<Group>> groups = ((UserImage) after).groups;
+            for (String context : union(this.groups, groups)) {
+                Map<Group, Long> a = this.groups.getOrDefault(context, new CompactLongMap<>());
+                Map<Group, Long> b = groups.getOrDefault(context, new CompactLongMap<>());
+                for (Group g : union(a, b)) {
+                    Long x = a.get(g), y = b.get(g);
+                    if (!Objects.equals(x, y)) {
+                        changes.add(new Change(holder, group, user, Change.Type.MEMBERSHIP, g.name, context, x != null ? x.toString() : null, y != null ? y.toString() : null));
+                    }
+                }
+            }
+            super.changes(after, holder, group, user, changes);
+        }
+    }
+
+    public static class Change {
+        final Object holder;
+        public final String group;
+        public final UUID user;
+        public final Type type;
+        public final String key, context, before, after;
+
+        Change(Object holder, String group, UUID user, Type type, String key, String context, String before, String after) {
+            this.holder = holder;
+            this.group = group;
+            this.user = user;
+            this.type = type;
+            this.key = key;
+            this.context = context;
+            this.before = before;
+            this.after = after;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder(this.before == null ? "+ " : this.after == null ? "- " : "~ ");
+            result.append(this.user != null ? "user " + this.user : "group " + this.group);
+            if (this.type != Type.GROUP) {
+                result.append(' ').append(this.type.name().toLowerCase().replace('_', ' '));
+            }
+            if (this.key != null) {
+                result.append(' ').append(this.key);
+            }
+            if (this.type != Type.PERMISSION && this.type != Type.GROUP) {
+                result.append(": ").append(this.before).append(" -> ").append(this.after);
+            }
+            if (this.context != null && !this.context.isEmpty()) {
+                result.append(" in ").append(this.context);
+            }
+            return result.toString();
+        }
+
+        public enum Type {
+            GROUP, NAME, PARENT, PRIORITY, MEMBERSHIP, PERMISSION, METADATA, PERMISSION_EXPIRY, METADATA_EXPIRY
+        }
+    }
+}
@@ -4,116 +4,359 @@ import com.google.common.base.MoreObjects;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
 import org.apache.logging.log4j.Logger;
 import ru.craftlogic.api.util.ConfigurableManager;
 import ru.craftlogic.permissions.GroupManager.Group;
+import ru.craftlogic.permissions.util.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 public class UserManager extends ConfigurableManager {
-    final Map<UUID, User> users = new HashMap<>();
+    static final String EXPIRY_ACTOR = "@expiry";
+    private static final String USER_SOURCE = "user";
+    private static final AtomicLongFieldUpdater<User> REVISION = AtomicLongFieldUpdater.newUpdater(User.class, "revision");
+
+    final Map<UUID, User> users = new ConcurrentHashMap<>();
     private final PermissionManager permissionManager;
+    private final Path file;
+    private volatile CompletableFuture<Void> loading = CompletableFuture.completedFuture(null);
+    private volatile boolean aborted;
+    private final Map<UUID, User> placeholders = new ConcurrentHashMap<>();
+    private final Queue<UUID> requests = new ConcurrentLinkedQueue<>();
+    private final Set<String> served = new HashSet<>();
+    private volatile EntryOffsets offsets;
 
     public UserManager(PermissionManager permissionManager, Path configPath, Logger logger) {
         super(permissionManager.getServer(), configPath, logger);
         this.permissionManager = permissionManager;
+        this.file = configPath;
     }
 
     @Override
     protected void load(JsonObject users) {
         for (Map.Entry<String, JsonElement> entry : users.entrySet()) {
-            UUID id = UUID.fromString(entry.getKey());
-            if (!(entry.getValue() instanceof JsonObject)) {
-                getLogger().error("User entry '" + id + "' isn't an object! Ignoring it...");
-                continue;
+            User user = this.read(entry.getKey(), entry.getValue());
+            if (user != null) {
+                this.register(user);
             }
-            JsonObject u = (JsonObject) entry.getValue();
-            Set<String> permissions = new HashSet<>();
-            if (u.has("permissions")) {
-                for (JsonElement element : u.getAsJsonArray("permissions")) {
-                    permissions.add(element.getAsString());
+        }
+    }
+
+    public CompletableFuture<Void> loadAsync(Executor executor) {
+        this.aborted = false;
+        CompletableFuture<Void> loading = CompletableFuture.runAsync(() -> {
+            try {
+                this.scan();
+            } catch (IOException | RuntimeException e) {
+                if (this.aborted) {
+                    return;
+                }
+                getLogger().error("Unable to stream users from " + this.file + ", falling back to a full load", e);
+                try {
+                    this.load();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
                 }
             }
-            Map<String, String> metadata = new HashMap<>();
-            if (u.has("metadata")) {
-                for (Map.Entry<String, JsonElement> e : u.getAsJsonObject("metadata").entrySet()) {
-                    metadata.put(e.getKey(), e.getValue().getAsString());
+            if (!this.aborted) {
+                this.placeholders.clear();
+            }
+        }, executor);
+        this.loading = loading;
+        return loading;
+    }
+
+    public void abortLoading() {
+        this.aborted = true;
+        try {
+            this.loading.join();
+        } catch (CompletionException | CancellationException ignored) {}
+    }
+
+    public boolean isLoaded() {
+        return this.loading.isDone() && !this.aborted && !this.loading.isCompletedExceptionally();
+    }
+
+    public boolean isLoaded(UUID id) {
+        return this.users.containsKey(id) && !this.placeholders.containsKey(id);
+    }
+
+    private void scan() throws IOException {
+        if (!Files.exists(this.file)) {
+            return;
+        }
+        this.offsets = EntryOffsets.read(this.file);
+        JsonParser parser = new JsonParser();
+        try (JsonReader reader = new JsonReader(Files.newBufferedReader(this.file, StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext() && !this.aborted) {
+                String name = reader.nextName();
+                if (!this.served.isEmpty() && this.served.remove(name.toLowerCase(Locale.ROOT))) {
+                    reader.skipValue();
+                    continue;
+                }
+                User user = this.read(name, parser.parse(reader));
+                if (user != null) {
+                    this.register(user);
+                }
+                if (!this.requests.isEmpty()) {
+                    this.serveRequests();
                 }
             }
-            Map<Group, Long> groups = new HashMap<>();
+        } finally {
+            this.offsets = null;
+            this.served.clear();
+        }
+    }
 
-            if (u.has("groups")) {
-                if (u.get("groups").isJsonArray()) {
-                    for (JsonElement group : u.getAsJsonArray("groups")) {
-                        String groupName = group.getAsString();
-                        if (!permissionManager.groupManager.groups.containsKey(groupName)) {
-                            getLogger().error("User '" + id + "' is a member of an unknown group named '" + groupName + "' Ignoring it...");
-                            continue;
-                        }
-                        groups.put(permissionManager.groupManager.groups.get(groupName), 0L);
+    private void serveRequests() throws IOException {
+        JsonParser parser = new JsonParser();
+        try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+            UUID id;
+            while ((id = this.requests.poll()) != null) {
+                User placeholder = this.placeholders.get(id);
+                if (placeholder == null) {
+                    continue;
+                }
+                long offset = this.offsets.get(id);
+                if (offset >= 0) {
+                    channel.position(offset);
+                    User user = this.read(id.toString(), parser.parse(new JsonReader(Channels.newReader(channel, StandardCharsets.UTF_8.name()))));
+                    if (user != null) {
+                        this.register(user);
+                        this.served.add(id.toString());
+                    }
+                }
+                this.placeholders.remove(id, placeholder);
+            }
+        }
+    }
+
+    private User read(String key, JsonElement value) {
+        UUID id;
+        try {
+            id = UUID.fromString(key);
+        } catch (IllegalArgumentException e) {
+            getLogger().error("User entry '" + key + "' isn't a valid UUID! Ignoring it...");
+            return null;
+        }
+        if (!(value instanceof JsonObject)) {
+            getLogger().error("User entry '" + id + "' isn't an object! Ignoring it...");
+            return null;
+        }
+        JsonObject u = (JsonObject) value;
+        Set<String> permissions = new HashSet<>();
+        if (u.has("permissions")) {
+            for (JsonElement element : u.getAsJsonArray("permissions")) {
+                permissions.add(element.getAsString());
+            }
+        }
+        Map<String, String> metadata = new HashMap<>();
+        if (u.has("metadata")) {
+            for (Map.Entry<String, JsonElement> e : u.getAsJsonObject("metadata").entrySet()) {
+                metadata.put(e.getKey(), e.getValue().getAsString());
+            }
+        }
+        Map<Group, Long> groups = new HashMap<>();
+
+        if (u.has("groups")) {
+            if (u.get("groups").isJsonArray()) {
+                for (JsonElement group : u.getAsJsonArray("groups")) {
+                    String groupName = group.getAsString();
+                    if (!permissionManager.groupManager.groups.containsKey(groupName)) {
+                        getLogger().error("User '" + id + "' is a member of an unknown group named '" + groupName + "' Ignoring it...");
+                        continue;
+                    }
+                    groups.put(permissionManager.groupManager.groups.get(groupName), 0L);
+                }
+            } else {
+                for (Map.Entry<String, JsonElement> e : u.getAsJsonObject("groups").entrySet()) {
+                    String groupName = e.getKey();
+                    long expiration = MoreObjects.firstNonNull(e.getValue().getAsLong(), 0L);
+                    if (!permissionManager.groupManager.groups.containsKey(groupName)) {
+                        getLogger().error("User '" + id + "' is a member of an unknown group named '" + groupName + "' Ignoring it...");
+                        continue;
+                    }
+                    groups.put(permissionManager.groupManager.groups.get(groupName), expiration);
+                }
+            }
+        }
+        User user = new User(id, groups, permissions, metadata);
+        GroupManager.loadExpirations(u, Contexts.GLOBAL, user.permissions, user.metadata, user.expirations);
+        if (u.has("contexts")) {
+            for (Map.Entry<String, JsonElement> e : u.getAsJsonObject("contexts").entrySet()) {
+                String context = e.getKey();
+                if (!Contexts.isValid(context)) {
+                    getLogger().error("User '" + id + "' has malformed context '" + context + "'! Ignoring it...");
+                    continue;
+                }
+                context = Contexts.normalize(context);
+                JsonObject c = e.getValue().getAsJsonObject();
+                context = StringPool.intern(context);
+                if (c.has("permissions")) {
+                    List<String> p = new ArrayList<>();
+                    for (JsonElement element : c.getAsJsonArray("permissions")) {
+                        p.add(element.getAsString());
+                    }
+                    user.contextPermissions.put(context, new CompactStringSet(p));
+                }
+                if (c.has("metadata")) {
+                    Map<String, String> m = new HashMap<>();
+                    for (Map.Entry<String, JsonElement> me : c.getAsJsonObject("metadata").entrySet()) {
+                        m.put(me.getKey(), me.getValue().getAsString());
                     }
-                } else {
-                    for (Map.Entry<String, JsonElement> e : u.getAsJsonObject("groups").entrySet()) {
-                        String groupName = e.getKey();
-                        long expiration = MoreObjects.firstNonNull(e.getValue().getAsLong(), 0L);
+                    user.contextMetadata.put(context, new CompactStringMap(m));
+                }
+                if (c.has("groups")) {
+                    Map<Group, Long> g = new HashMap<>();
+                    for (Map.Entry<String, JsonElement> ge : c.getAsJsonObject("groups").entrySet()) {
+                        String groupName = ge.getKey();
                         if (!permissionManager.groupManager.groups.containsKey(groupName)) {
                             getLogger().error("User '" + id + "' is a member of an unknown group named '" + groupName + "' Ignoring it...");
                             continue;
                         }
-                        groups.put(permissionManager.groupManager.groups.get(groupName), expiration);
+                        g.put(permissionManager.groupManager.groups.get(groupName), ge.getValue().getAsLong());
                     }
+                    user.contextGroups.put(context, new CompactLongMap<>(g));
                 }
+                GroupManager.loadExpirations(c, context, user.contextPermissions.get(context), user.contextMetadata.get(context), user.expirations);
+            }
+        }
+        return user;
+    }
+
+    private User register(User user) {
+        this.permissionManager.indexUser(user);
+        User existing;
+        synchronized (this.placeholders) {
+            existing = this.users.putIfAbsent(user.id, user);
+            if (existing != null && this.placeholders.get(user.id) != existing) {
+                this.permissionManager.unindexUser(user);
+                return existing;
+            }
+        }
+        User holder = existing != null ? existing : user;
+        if (existing != null) {
+            synchronized (existing) {
+                existing.groups.putAll(user.groups);
+                existing.permissions.addAll(user.permissions);
+                existing.metadata.putAll(user.metadata);
+                existing.contextPermissions.putAll(user.contextPermissions);
+                existing.contextMetadata.putAll(user.contextMetadata);
+                existing.contextGroups.putAll(user.contextGroups);
+                existing.expirations.putAll(user.expirations);
             }
-            User user = new User(id, groups, permissions, metadata);
-            this.users.put(id, user);
-            for (Map.Entry<Group, Long> e : groups.entrySet()) {
-                Group group = e.getKey();
-                Long expiration = e.getValue();
-                permissionManager.groupManager.groupUsersCache.computeIfAbsent(group, k -> new HashMap<>()).put(user, expiration);
+            existing.invalidate();
+            this.permissionManager.sync.schedule(existing.id);
+        }
+        for (Map.Entry<Group, Long> e : user.groups.entrySet()) {
+            permissionManager.groupManager.addMember(e.getKey(), holder, e.getValue());
+        }
+        for (Map<Group, Long> g : user.contextGroups.values()) {
+            for (Map.Entry<Group, Long> e : g.entrySet()) {
+                permissionManager.groupManager.addMember(e.getKey(), holder, e.getValue());
             }
         }
+        this.permissionManager.scheduleUser(holder, user);
+        if (existing != null) {
+            this.placeholders.remove(user.id, existing);
+        }
+        return holder;
     }
 
     @Override
     protected void save(JsonObject users) {
-        for (Map.Entry<UUID, User> entry : this.users.entrySet()) {
-            User u = entry.getValue();
-            JsonObject user = new JsonObject();
-            if (!u.permissions.isEmpty()) {
-                JsonArray permissions = new JsonArray();
-                for (String permission : u.permissions) {
-                    permissions.add(new JsonPrimitive(permission));
-                }
-                user.add("permissions", permissions);
+        JsonParser parser = new JsonParser();
+        for (User user : this.users.values()) {
+            String fragment = this.fragment(user);
+            if (!fragment.isEmpty()) {
+                users.add(user.id.toString(), parser.parse(fragment));
             }
-            if (!u.metadata.isEmpty()) {
-                JsonObject metadata = new JsonObject();
-                for (Map.Entry<String, String> e : u.metadata.entrySet()) {
-                    metadata.addProperty(e.getKey(), e.getValue());
+        }
+    }
+
+    @Override
+    public synchronized void save(boolean force) throws IOException {
+        if (force || this.isDirty()) {
+            JsonFragments.write(this.file, sink -> {
+                for (User user : this.users.values()) {
+                    sink.accept(user.id.toString(), this.fragment(user));
                 }
-                user.add("metadata", metadata);
+            });
+            this.setDirty(false);
+        }
+    }
+
+    private String fragment(User user) {
+        long revision = user.revision;
+        JsonFragments.Fragment fragment = user.fragment;
+        if (fragment == null || !fragment.matches(revision)) {
+            JsonObject json;
+            synchronized (user) {
+                json = encode(user);
             }
-            if (!u.groups.isEmpty()) {
+            user.fragment = fragment = new JsonFragments.Fragment(revision, JsonFragments.encode(json));
+        }
+        return fragment.json;
+    }
+
+    private static JsonObject encode(User u) {
+        JsonObject user = new JsonObject();
+        if (!u.permissions.isEmpty()) {
+            JsonArray permissions = new JsonArray();
+            for (String permission : u.permissions) {
+                permissions.add(new JsonPrimitive(permission));
+            }
+            user.add("permissions", permissions);
+        }
+        if (!u.metadata.isEmpty()) {
+            JsonObject metadata = new JsonObject();
+            for (Map.Entry<String, String> e : u.metadata.entrySet()) {
+                metadata.addProperty(e.getKey(), e.getValue());
+            }
+            user.add("metadata", metadata);
+        }
+        if (!u.groups.isEmpty()) {
+            JsonObject groups = new JsonObject();
+            for (Map.Entry<Group, Long> e : u.groups.entrySet()) {
+                groups.addProperty(e.getKey().name, e.getValue());
+            }
+            user.add("groups", groups);
+        }
+        JsonObject contexts = GroupManager.saveContexts(u.contextPermissions, u.contextMetadata);
+        GroupManager.saveExpirations(user, contexts, u.expirations);
+        for (Map.Entry<String, Map<Group, Long>> e : u.contextGroups.entrySet()) {
+            if (!e.getValue().isEmpty()) {
                 JsonObject groups = new JsonObject();
-                Iterator<Map.Entry<Group, Long>> iterator = u.groups.entrySet().iterator();
-                while (iterator.hasNext()) {
-                    Map.Entry<Group, Long> e = iterator.next();
-                    Group group = e.getKey();
-                    long expiration = e.getValue();
-                    if (expiration == 0 || expiration >= System.currentTimeMillis()) {
-                        groups.addProperty(group.name, expiration);
-                    } else {
-                        iterator.remove();
-                    }
+                for (Map.Entry<Group, Long> ge : e.getValue().entrySet()) {
+                    groups.addProperty(ge.getKey().name, ge.getValue());
                 }
-                user.add("groups", groups);
-            }
-            if (user.size() > 0) {
-                users.add(entry.getKey().toString(), user);
+                GroupManager.getOrCreate(contexts, e.getKey()).add("groups", groups);
             }
         }
+        if (contexts.size() > 0) {
+            user.add("contexts", contexts);
+        }
+        return user;
     }
 
     public Map<Group, Long> getGroups(UUID id) {
@@ -122,7 +365,7 @@ public class UserManager extends ConfigurableManager {
         if (defaultGroup != null) {
             groups.put(defaultGroup, 0L);
         }
-        User user = this.users.get(id);
+        User user = this.isLoaded() ? this.users.get(id) : this.getUser(id);
         if (user != null) {
             groups.putAll(user.groups);
         }
@@ -130,7 +373,34 @@ public class UserManager extends ConfigurableManager {
     }
 
     public User getUser(UUID id) {
-        return this.users.computeIfAbsent(id, User::new);
+        User user = this.users.get(id);
+        if (user == null && !this.isLoaded()) {
+            synchronized (this.placeholders) {
+                user = this.users.get(id);
+                if (user == null) {
+                    user = new User(id);
+                    this.users.put(id, user);
+                    this.placeholders.put(id, user);
+                    this.requests.add(id);
+                }
+            }
+        }
+        return user != null ? user : this.users.computeIfAbsent(id, User::new);
+    }
+
+    public void release(UUID id) {
+        User user = this.users.get(id);
+        if (user != null) {
+            user.release();
+            if (user.isEmpty()) {
+                this.users.remove(id, user);
+                this.placeholders.remove(id, user);
+            }
+        }
+    }
+
+    public Collection<User> getLoadedUsers() {
+        return Collections.unmodifiableCollection(this.users.values());
     }
 
     public class User {
@@ -138,16 +408,29 @@ public class UserManager extends ConfigurableManager {
         public final Map<Group, Long> groups;
         public final Set<String> permissions;
         public final Map<String, String> metadata;
+        public final Map<String, Set<String>> contextPermissions = new CompactContextMap<>();
+        public final Map<String, Map<String, String>> contextMetadata = new CompactContextMap<>();
+        public final Map<String, Map<Group, Long>> contextGroups = new CompactContextMap<>();
+        public final Map<Expiry, Long> expirations = new CompactLongMap<>();
+        private final Map<String, PermissionView> views = new CompactContextMap<>();
+        private volatile String context = Contexts.GLOBAL;
+        volatile long revision;
+        volatile JsonFragments.Fragment fragment;
+        private volatile WildcardFlag wildcard;
+        private volatile Warmup warming;
 
         User(UUID id) {
-            this(id, new HashMap<>(), new HashSet<>(), new HashMap<>());
+            this.id = id;
+            this.groups = new CompactLongMap<>();
+            this.permissions = new CompactStringSet();
+            this.metadata = new CompactStringMap();
         }
 
         public User(UUID id, Map<Group, Long> groups, Set<String> permissions, Map<String, String> metadata) {
             this.id = id;
-            this.groups = groups;
-            this.permissions = permissions;
-            this.metadata = metadata;
+            this.groups = new CompactLongMap<>(groups);
+            this.permissions = new CompactStringSet(permissions);
+            this.metadata = new CompactStringMap(metadata);
         }
 
         public UUID id() {
@@ -161,12 +444,9 @@ public class UserManager extends ConfigurableManager {
                 if (defaultGroup != null) {
                     permissions.addAll(defaultGroup.permissions(true));
                 }
-                for (Iterator<Map.Entry<Group, Long>> iterator = this.groups.entrySet().iterator(); iterator.hasNext(); ) {
-                    Map.Entry<Group, Long> entry = iterator.next();
+                for (Map.Entry<Group, Long> entry : this.groups.entrySet()) {
                     if (entry.getValue() == 0 || entry.getValue() >= System.currentTimeMillis()) {
                         permissions.addAll(entry.getKey().permissions(true));
-                    } else {
-                        iterator.remove();
                     }
                 }
 
@@ -181,12 +461,9 @@ public class UserManager extends ConfigurableManager {
                 if (defaultGroup != null) {
                     metadata.putAll(defaultGroup.metadata(true));
                 }
-                for (Iterator<Map.Entry<Group, Long>> iterator = this.groups.entrySet().iterator(); iterator.hasNext(); ) {
-                    Map.Entry<Group, Long> entry = iterator.next();
+                for (Map.Entry<Group, Long> entry : this.groups.entrySet()) {
                     if (entry.getValue() == 0 || entry.getValue() >= System.currentTimeMillis()) {
                         metadata.putAll(entry.getKey().metadata(true));
-                    } else {
-                        iterator.remove();
                     }
                 }
             }
@@ -194,32 +471,275 @@ public class UserManager extends ConfigurableManager {
             return metadata;
         }
 
-        public boolean hasPermissions(String... permissions) {
-            return this.hasPermissions(Arrays.asList(permissions));
+        public Set<String> permissionsIn(String context) {
+            return context.isEmpty() ? this.permissions : this.contextPermissions.computeIfAbsent(StringPool.intern(context), k -> new CompactStringSet());
         }
 
-        public boolean hasPermissions(Collection<String> permissions) {
-            if (permissions.isEmpty()) {
-                return true;
+        public Map<String, String> metadataIn(String context) {
+            return context.isEmpty() ? this.metadata : this.contextMetadata.computeIfAbsent(StringPool.intern(context), k -> new CompactStringMap());
+        }
+
+        public Map<Group, Long> groupsIn(String context) {
+            return context.isEmpty() ? this.groups : this.contextGroups.computeIfAbsent(StringPool.intern(context), k -> new CompactLongMap<>());
+        }
+
+        public long footprint(Footprint footprint) {
+            footprint.strings(this.permissions);
+            footprint.strings(this.metadata);
+            long size = Footprint.align(12 + 13 * Footprint.REFERENCE) + Footprint.OBJECT + 16
+                + ((CompactLongMap<Group>) this.groups).footprint()
+                + ((CompactStringSet) this.permissions).footprint()
+                + ((CompactStringMap) this.metadata).footprint()
+                + ((CompactContextMap<Set<String>>) this.contextPermissions).footprint()
+                + ((CompactContextMap<Map<String, String>>) this.contextMetadata).footprint()
+                + ((CompactContextMap<Map<Group, Long>>) this.contextGroups).footprint()
+                + ((CompactLongMap<Expiry>) this.expirations).footprint()
+                + this.expirations.size() * Footprint.align(12 + 3 * Footprint.REFERENCE);
+            for (Map.Entry<String, Set<String>> e : this.contextPermissions.entrySet()) {
+                footprint.string(e.getKey());
+                footprint.strings(e.getValue());
+                size += ((CompactStringSet) e.getValue()).footprint();
+            }
+            for (Map.Entry<String, Map<String, String>> e : this.contextMetadata.entrySet()) {
+                footprint.string(e.getKey());
+                footprint.strings(e.getValue());
+                size += ((CompactStringMap) e.getValue()).footprint();
+            }
+            for (Map.Entry<String, Map<Group, Long>> e : this.contextGroups.entrySet()) {
+                footprint.string(e.getKey());
+                size += ((CompactLongMap<Group>) e.getValue()).footprint();
             }
-            Set<String> ps = this.permissions(true);
-            for (String permission : permissions) {
-                if (ps.contains("-" + permission))
-                    return false;
+            JsonFragments.Fragment fragment = this.fragment;
+            if (fragment != null) {
+                footprint.string(fragment.json);
+                size += Footprint.align(12 + 16 + Footprint.REFERENCE);
             }
-            if (ps.contains("*")) {
+            return size;
+        }
+
+        public String context() {
+            return this.context;
+        }
+
+        public void setContext(String context) {
+            this.context = context;
+        }
+
+        public PermissionView view() {
+            return this.view(this.context);
+        }
+
+        public PermissionView view(String context) {
+            long generation = UserManager.this.permissionManager.generation();
+            PermissionView view = this.views.get(context);
+            if (view == null || !view.isValid(generation, this.revision, System.currentTimeMillis())) {
+                Warmup warming = this.warming;
+                if (warming != null && warming.context.equals(context)) {
+                    if (warming.start()) {
+                        warming.cancel(false);
+                    } else {
+                        try {
+                            view = warming.join();
+                        } catch (CompletionException | CancellationException e) {
+                            view = null;
+                        }
+                        if (view != null && view.isValid(generation, this.revision, System.currentTimeMillis())) {
+                            return view;
+                        }
+                    }
+                }
+                view = this.compile(context, generation);
+                this.views.put(context, view);
+            }
+            return view;
+        }
+
+        public CompletableFuture<PermissionView> prewarm(String context, Executor executor) {
+            Warmup warming = new Warmup(context);
+            this.warming = warming;
+            executor.execute(() -> {
+                if (warming.start()) {
+                    try {
+                        PermissionView view = this.compile(context, UserManager.this.permissionManager.generation());
+                        this.views.put(context, view);
+                        warming.complete(view);
+                    } catch (Throwable t) {
+                        warming.completeExceptionally(t);
+                    }
+                }
+            });
+            return warming;
+        }
+
+        public void invalidate() {
+            REVISION.incrementAndGet(this);
+            this.views.clear();
+        }
+
+        public void release() {
+            Warmup warming = this.warming;
+            if (warming != null && warming.start()) {
+                warming.cancel(false);
+            }
+            this.warming = null;
+            this.views.clear();
+        }
+
+        public boolean isMemberOf(Group group) {
+            if (this.groups.containsKey(group)) {
                 return true;
             }
-            for (String permission : permissions) {
-                if (!ps.contains(permission))
-                    return false;
+            for (Map<Group, Long> groups : this.contextGroups.values()) {
+                if (groups.containsKey(group)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean isEmpty() {
+            return this.groups.isEmpty() && this.permissions.isEmpty() && this.metadata.isEmpty()
+                && this.contextGroups.isEmpty() && this.contextPermissions.isEmpty() && this.contextMetadata.isEmpty()
+                && this.expirations.isEmpty();
+        }
+
+        private long collectGroups(String context, long now, List<Group> groups) {
+            long validUntil = Long.MAX_VALUE;
+            Group defaultGroup = UserManager.this.permissionManager.getDefaultGroup();
+            if (defaultGroup != null) {
+                groups.add(defaultGroup);
+            }
+            for (Map.Entry<Group, Long> entry : this.groups.entrySet()) {
+                long expiration = entry.getValue();
+                if (expiration == 0 || expiration >= now) {
+                    groups.add(entry.getKey());
+                    if (expiration != 0) {
+                        validUntil = Math.min(validUntil, expiration);
+                    }
+                }
+            }
+            for (Map.Entry<String, Map<Group, Long>> e : this.contextGroups.entrySet()) {
+                if (Contexts.applies(e.getKey(), context)) {
+                    for (Map.Entry<Group, Long> entry : e.getValue().entrySet()) {
+                        long expiration = entry.getValue();
+                        if (expiration == 0 || expiration >= now) {
+                            groups.add(entry.getKey());
+                            if (expiration != 0) {
+                                validUntil = Math.min(validUntil, expiration);
+                            }
+                        }
+                    }
+                }
             }
-            return true;
+            return validUntil;
+        }
+
+        private boolean holdsWildcard(String context) {
+            PermissionManager permissionManager = UserManager.this.permissionManager;
+            if (!permissionManager.nodeIndex.contains("*")) {
+                return false;
+            }
+            long generation = permissionManager.generation();
+            long revision = this.revision;
+            long now = System.currentTimeMillis();
+            PermissionView view = this.views.get(context);
+            if (view != null && view.isValid(generation, revision, now)) {
+                return view.hasWildcard();
+            }
+            WildcardFlag flag = this.wildcard;
+            if (flag != null && flag.context.equals(context) && flag.generation == generation && flag.revision == revision && now <= flag.validUntil) {
+                return flag.value;
+            }
+            boolean value = this.permissions.contains("*");
+            for (Map.Entry<String, Set<String>> e : this.contextPermissions.entrySet()) {
+                value = value || Contexts.applies(e.getKey(), context) && e.getValue().contains("*");
+            }
+            List<Group> groups = new ArrayList<>();
+            long validUntil = this.collectGroups(context, now, groups);
+            for (Group group : groups) {
+                value = value || group.grantsWildcard(context, 1);
+            }
+            this.wildcard = new WildcardFlag(context, generation, revision, validUntil, value);
+            return value;
+        }
+
+        private PermissionView compile(String context, long generation) {
+            long revision = this.revision;
+            long now = System.currentTimeMillis();
+            List<Group> groups = new ArrayList<>();
+            long validUntil = this.collectGroups(context, now, groups);
+            Map<String, PermissionView.Grant> grants = new HashMap<>();
+            PermissionView.grant(grants, this.permissions, USER_SOURCE, 0, Contexts.GLOBAL);
+            for (Map.Entry<String, Set<String>> e : this.contextPermissions.entrySet()) {
+                if (Contexts.applies(e.getKey(), context)) {
+                    PermissionView.grant(grants, e.getValue(), USER_SOURCE, 0, e.getKey());
+                }
+            }
+            Map<String, String> metadata = new HashMap<>();
+            for (Group group : groups) {
+                group.collectPermissions(context, grants, 1);
+                group.collectMetadata(context, metadata, 1);
+            }
+            metadata.putAll(this.metadata);
+            for (Map.Entry<String, Map<String, String>> e : this.contextMetadata.entrySet()) {
+                if (Contexts.applies(e.getKey(), context)) {
+                    metadata.putAll(e.getValue());
+                }
+            }
+            return new PermissionView(context, generation, revision, validUntil, grants, metadata);
+        }
+
+        public boolean hasPermissions(String... permissions) {
+            return this.hasPermissions(Arrays.asList(permissions));
+        }
+
+        public boolean hasPermissions(Collection<String> permissions) {
+            PermissionManager permissionManager = UserManager.this.permissionManager;
+            if (!permissions.isEmpty()) {
+                boolean known = false;
+                for (String permission : permissions) {
+                    if (permissionManager.nodeIndex.contains(permission) || permissionManager.nodeIndex.contains("-" + permission)) {
+                        known = true;
+                    } else if (!this.holdsWildcard(this.context)) {
+                        return false;
+                    }
+                }
+                if (!known) {
+                    return true;
+                }
+            }
+            return this.view().hasPermissions(permissions);
         }
 
         public String getPermissionMetadata(String meta) {
-            Map<String, String> md = this.metadata(true);
-            return md.get(meta);
+            return this.view().getPermissionMetadata(meta);
+        }
+    }
+
+    private static final class WildcardFlag {
+        final String context;
+        final long generation, revision, validUntil;
+        final boolean value;
+
+        WildcardFlag(String context, long generation, long revision, long validUntil, boolean value) {
+            this.context = context;
+            this.generation = generation;
+            this.revision = revision;
+            this.validUntil = validUntil;
+            this.value = value;
+        }
+    }
+
+    private static final class Warmup extends CompletableFuture<PermissionView> {
+        final String context;
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        Warmup(String context) {
+            this.context = context;
+        }
+
+        boolean start() {
+            return this.started.compareAndSet(false, true);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,290 @@
+package ru.craftlogic.permissions.audit;
+
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class AuditLog {
+    private static final int SEGMENT_SIZE = 4 << 20;
+    private static final int INDEX_ENTRY_SIZE = 20;
+    private static final int QUEUE_CAPACITY = 8192;
+
+    private final Path directory;
+    private final Logger logger;
+    private final int maxSegments;
+    private final AuditQueue<AuditRecord> queue = new AuditQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running;
+    private Thread writer;
+
+    private int segment;
+    private FileChannel dataChannel, indexChannel;
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+    private boolean unflushed;
+
+    public AuditLog(Path directory, Logger logger, int maxSegments) {
+        this.directory = directory;
+        this.logger = logger;
+        this.maxSegments = maxSegments;
+    }
+
+    public synchronized void start() throws IOException {
+        if (this.running) {
+            return;
+        }
+        Files.createDirectories(this.directory);
+        List<Integer> segments = this.listSegments();
+        this.openSegment(segments.isEmpty() ? 1 : segments.get(segments.size() - 1));
+        this.running = true;
+        this.writer = new Thread(this::run, "Permission audit writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public synchronized void stop() {
+        if (!this.running) {
+            return;
+        }
+        this.running = false;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long dropped = this.dropped.getAndSet(0);
+        if (dropped > 0) {
+            this.logger.warn("Audit log queue overflowed, " + dropped + " records were dropped");
+        }
+    }
+
+    public void log(AuditRecord record) {
+        if (!this.running) {
+            return;
+        }
+        if (this.queue.offer(record)) {
+            LockSupport.unpark(this.writer);
+        } else {
+            this.dropped.incrementAndGet();
+        }
+    }
+
+    private void run() {
+        while (this.running || !this.queue.isEmpty()) {
+            AuditRecord record = this.queue.poll();
+            if (record == null) {
+                if (this.unflushed) {
+                    try {
+                        this.flush();
+                    } catch (IOException | RuntimeException e) {
+                        this.logger.error("Unable to flush audit log", e);
+                    }
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+            try {
+                this.write(record);
+            } catch (IOException | RuntimeException e) {
+                this.logger.error("Unable to write audit record: " + record, e);
+            }
+        }
+        try {
+            this.closeSegment();
+        } catch (IOException | RuntimeException e) {
+            this.logger.error("Unable to close audit log", e);
+        }
+    }
+
+    private void write(AuditRecord record) throws IOException {
+        byte[] encoded = record.encode();
+        if (encoded.length + 4 > SEGMENT_SIZE) {
+            this.logger.warn("Audit record is too large, skipping it: " + record);
+            return;
+        }
+        if (this.dataChannel == null) {
+            this.openSegment(this.segment + 1);
+        } else if (this.dataChannel.position() + encoded.length + 4 > SEGMENT_SIZE) {
+            this.closeSegment();
+            this.openSegment(this.segment + 1);
+            try {
+                this.pruneSegments();
+            } catch (IOException e) {
+                this.logger.error("Unable to prune audit segments", e);
+            }
+        }
+        long offset = this.dataChannel.position();
+        ByteBuffer data = ByteBuffer.allocate(encoded.length + 4);
+        data.putInt(encoded.length);
+        data.put(encoded);
+        data.flip();
+        while (data.hasRemaining()) {
+            this.dataChannel.write(data);
+        }
+        this.indexEntry.clear();
+        this.indexEntry.putLong(record.time);
+        this.indexEntry.putInt((int) offset);
+        this.indexEntry.putInt(Objects.hashCode(record.user));
+        this.indexEntry.putInt(Objects.hashCode(record.group));
+        this.indexEntry.flip();
+        while (this.indexEntry.hasRemaining()) {
+            this.indexChannel.write(this.indexEntry);
+        }
+        this.unflushed = true;
+    }
+
+    private void openSegment(int segment) throws IOException {
+        FileChannel dataChannel = FileChannel.open(this.dataFile(segment), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel indexChannel;
+        try {
+            indexChannel = FileChannel.open(this.indexFile(segment), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            dataChannel.close();
+            throw e;
+        }
+        try {
+            long entries = indexChannel.size() / INDEX_ENTRY_SIZE;
+            long position = 0;
+            if (entries > 0) {
+                ByteBuffer last = readFully(indexChannel, (entries - 1) * INDEX_ENTRY_SIZE, INDEX_ENTRY_SIZE);
+                int offset = last.getInt(8);
+                position = offset + 4 + readFully(dataChannel, offset, 4).getInt();
+            }
+            indexChannel.truncate(entries * INDEX_ENTRY_SIZE);
+            indexChannel.position(entries * INDEX_ENTRY_SIZE);
+            dataChannel.truncate(position);
+            dataChannel.position(position);
+        } catch (IOException | RuntimeException e) {
+            dataChannel.close();
+            indexChannel.close();
+            throw e;
+        }
+        this.segment = segment;
+        this.dataChannel = dataChannel;
+        this.indexChannel = indexChannel;
+    }
+
+    private void flush() throws IOException {
+        if (this.dataChannel != null) {
+            this.dataChannel.force(false);
+            this.indexChannel.force(false);
+        }
+        this.unflushed = false;
+    }
+
+    private void closeSegment() throws IOException {
+        FileChannel dataChannel = this.dataChannel, indexChannel = this.indexChannel;
+        this.dataChannel = this.indexChannel = null;
+        if (dataChannel != null) {
+            try {
+                dataChannel.force(false);
+                indexChannel.force(false);
+            } finally {
+                dataChannel.close();
+                indexChannel.close();
+            }
+        }
+        this.unflushed = false;
+    }
+
+    private void pruneSegments() throws IOException {
+        List<Integer> segments = this.listSegments();
+        for (int i = 0; i < segments.size() - this.maxSegments; i++) {
+            Files.deleteIfExists(this.dataFile(segments.get(i)));
+            Files.deleteIfExists(this.indexFile(segments.get(i)));
+        }
+    }
+
+    public List<AuditRecord> query(UUID user, String group, long from, long to, int limit) throws IOException {
+        List<AuditRecord> result = new ArrayList<>();
+        List<Integer> segments = this.listSegments();
+        Collections.reverse(segments);
+        for (int segment : segments) {
+            ByteBuffer index;
+            try {
+                index = ByteBuffer.wrap(Files.readAllBytes(this.indexFile(segment)));
+            } catch (IOException e) {
+                continue;
+            }
+            int entries = index.capacity() / INDEX_ENTRY_SIZE;
+            if (entries == 0 || index.getLong(0) > to) {
+                continue;
+            }
+            if (index.getLong((entries - 1) * INDEX_ENTRY_SIZE) < from) {
+                break;
+            }
+            try (FileChannel channel = FileChannel.open(this.dataFile(segment), StandardOpenOption.READ)) {
+                for (int i = entries - 1; i >= 0; i--) {
+                    int base = i * INDEX_ENTRY_SIZE;
+                    long time = index.getLong(base);
+                    if (time > to) {
+                        continue;
+                    }
+                    if (time < from) {
+                        return result;
+                    }
+                    if (user != null && index.getInt(base + 12) != user.hashCode()
+                        || group != null && index.getInt(base + 16) != group.hashCode()) {
+                        continue;
+                    }
+                    AuditRecord record = this.read(channel, index.getInt(base + 8));
+                    if ((user == null || user.equals(record.user)) && (group == null || group.equals(record.group))) {
+                        result.add(record);
+                        if (result.size() >= limit) {
+                            return result;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private AuditRecord read(FileChannel channel, int offset) throws IOException {
+        ByteBuffer length = readFully(channel, offset, 4);
+        return AuditRecord.decode(readFully(channel, offset + 4, length.getInt()));
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of audit segment");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private List<Integer> listSegments() throws IOException {
+        List<Integer> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, "*.idx")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    segments.add(Integer.parseInt(name.substring(0, name.length() - 4)));
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private Path dataFile(int segment) {
+        return this.directory.resolve(String.format("%08d.log", segment));
+    }
+
+    private Path indexFile(int segment) {
+        return this.directory.resolve(String.format("%08d.idx", segment));
+    }
+}
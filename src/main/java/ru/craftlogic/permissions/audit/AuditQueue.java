@@ -0,0 +1,65 @@
+package ru.craftlogic.permissions.audit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded multi-producer queue based on per-slot sequence numbers, so that
+ * offering never blocks nor allocates on the calling thread.
+ */
+public class AuditQueue<T> {
+    private final int mask;
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+
+    public AuditQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+    }
+
+    public boolean offer(T element) {
+        while (true) {
+            long position = this.tail.get();
+            int index = (int) position & this.mask;
+            long diff = this.sequences.get(index) - position;
+            if (diff == 0) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.elements.lazySet(index, element);
+                    this.sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    public T poll() {
+        while (true) {
+            long position = this.head.get();
+            int index = (int) position & this.mask;
+            long diff = this.sequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (this.head.compareAndSet(position, position + 1)) {
+                    T element = this.elements.get(index);
+                    this.elements.lazySet(index, null);
+                    this.sequences.set(index, position + this.mask + 1);
+                    return element;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return this.head.get() == this.tail.get();
+    }
+}
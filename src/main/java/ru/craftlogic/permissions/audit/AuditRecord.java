@@ -0,0 +1,129 @@
+package ru.craftlogic.permissions.audit;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+public class AuditRecord {
+    public final long time;
+    public final String actor;
+    public final Action action;
+    public final String group;
+    public final UUID user;
+    public final String key, value, context;
+
+    public AuditRecord(long time, String actor, Action action, String group, UUID user, String key, String value, String context) {
+        this.time = time;
+        this.actor = actor;
+        this.action = action;
+        this.group = group;
+        this.user = user;
+        this.key = key;
+        this.value = value;
+        this.context = context;
+    }
+
+    public static AuditRecord group(String actor, Action action, String group, String key, String value, String context) {
+        return new AuditRecord(System.currentTimeMillis(), actor, action, group, null, key, value, context);
+    }
+
+    public static AuditRecord user(String actor, Action action, UUID user, String group, String key, String value, String context) {
+        return new AuditRecord(System.currentTimeMillis(), actor, action, group, user, key, value, context);
+    }
+
+    byte[] encode() {
+        byte[][] strings = {bytes(this.actor), bytes(this.group), bytes(this.key), bytes(this.value), bytes(this.context)};
+        int size = 8 + 1 + 1 + (this.user != null ? 16 : 0);
+        for (byte[] s : strings) {
+            size += 4 + (s != null ? s.length : 0);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putLong(this.time);
+        buf.put((byte) this.action.ordinal());
+        buf.put((byte) (this.user != null ? 1 : 0));
+        if (this.user != null) {
+            buf.putLong(this.user.getMostSignificantBits());
+            buf.putLong(this.user.getLeastSignificantBits());
+        }
+        for (byte[] s : strings) {
+            if (s != null) {
+                buf.putInt(s.length);
+                buf.put(s);
+            } else {
+                buf.putInt(-1);
+            }
+        }
+        return buf.array();
+    }
+
+    static AuditRecord decode(ByteBuffer buf) {
+        long time = buf.getLong();
+        Action action = Action.values()[buf.get()];
+        UUID user = buf.get() != 0 ? new UUID(buf.getLong(), buf.getLong()) : null;
+        String actor = string(buf);
+        String group = string(buf);
+        String key = string(buf);
+        String value = string(buf);
+        String context = string(buf);
+        return new AuditRecord(time, actor, action, group, user, key, value, context);
+    }
+
+    private static byte[] bytes(String s) {
+        return s != null ? s.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static String string(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder(this.actor).append(' ').append(this.action.name().toLowerCase());
+        if (this.user != null) {
+            result.append(" user=").append(this.user);
+        }
+        if (this.group != null) {
+            result.append(" group=").append(this.group);
+        }
+        if (this.key != null) {
+            result.append(' ').append(this.key);
+        }
+        if (this.value != null) {
+            result.append(" = ").append(this.value);
+        }
+        if (this.context != null && !this.context.isEmpty()) {
+            result.append(" in ").append(this.context);
+        }
+        return result.toString();
+    }
+
+    public enum Action {
+        GROUP_CREATE,
+        GROUP_DELETE,
+        GROUP_PERMISSION_ADD,
+        GROUP_PERMISSION_REMOVE,
+        GROUP_METADATA_SET,
+        GROUP_METADATA_UNSET,
+        USER_PERMISSION_ADD,
+        USER_PERMISSION_REMOVE,
+        USER_METADATA_SET,
+        USER_METADATA_UNSET,
+        USER_GROUP_ADD,
+        USER_GROUP_REMOVE,
+        USER_GROUP_EXPIRE,
+        GROUP_RENAME,
+        USER_PERMISSION_EXPIRE,
+        USER_METADATA_EXPIRE,
+        GROUP_PERMISSION_EXPIRE,
+        GROUP_METADATA_EXPIRE,
+        SNAPSHOT_CREATE,
+        SNAPSHOT_ROLLBACK,
+        OPTIMIZE_APPLY
+    }
+}
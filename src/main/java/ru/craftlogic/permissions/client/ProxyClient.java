@@ -2,12 +2,21 @@ package ru.craftlogic.permissions.client;
 
 import net.minecraft.client.Minecraft;
 import net.minecraftforge.fml.client.FMLClientHandler;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.network.FMLNetworkEvent;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+import ru.craftlogic.api.network.AdvancedMessage;
 import ru.craftlogic.permissions.common.ProxyCommon;
+import ru.craftlogic.permissions.network.MessagePermissions;
 import ru.craftlogic.util.ReflectiveUsage;
 
+import java.util.*;
+
 @ReflectiveUsage
 public class ProxyClient extends ProxyCommon {
     private final Minecraft client = FMLClientHandler.instance().getClient();
+    private final Set<String> permissions = new HashSet<>();
+    private final Map<String, String> metadata = new HashMap<>();
 
     @Override
     public void preInit() {
@@ -23,4 +32,47 @@ public class ProxyClient extends ProxyCommon {
     public void postInit() {
         super.postInit();
     }
+
+    @ReflectiveUsage
+    protected AdvancedMessage handlePermissions(MessagePermissions message, MessageContext context) {
+        this.client.addScheduledTask(() -> {
+            if (message.isFull()) {
+                this.permissions.clear();
+                this.metadata.clear();
+            }
+            this.permissions.removeAll(message.getRevoked());
+            this.permissions.addAll(message.getGranted());
+            this.metadata.keySet().removeAll(message.getMetadataUnset());
+            this.metadata.putAll(message.getMetadataSet());
+        });
+        return null;
+    }
+
+    @SubscribeEvent
+    public void onClientDisconnect(FMLNetworkEvent.ClientDisconnectionFromServerEvent event) {
+        this.client.addScheduledTask(() -> {
+            this.permissions.clear();
+            this.metadata.clear();
+        });
+    }
+
+    @Override
+    public boolean hasPermissions(Collection<String> permissions) {
+        if (permissions.isEmpty()) {
+            return true;
+        }
+        for (String permission : permissions) {
+            if (this.permissions.contains("-" + permission))
+                return false;
+        }
+        if (this.permissions.contains("*")) {
+            return true;
+        }
+        return this.permissions.containsAll(permissions);
+    }
+
+    @Override
+    public String getPermissionMetadata(String meta) {
+        return this.metadata.get(meta);
+    }
 }
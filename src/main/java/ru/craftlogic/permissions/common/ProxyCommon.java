@@ -7,6 +7,8 @@ import ru.craftlogic.api.network.AdvancedMessageHandler;
 import ru.craftlogic.permissions.PermissionManager;
 import ru.craftlogic.util.ReflectiveUsage;
 
+import java.util.Collection;
+
 @ReflectiveUsage
 public class ProxyCommon extends AdvancedMessageHandler {
     public void preInit() {
@@ -21,6 +23,14 @@ public class ProxyCommon extends AdvancedMessageHandler {
 
     }
 
+    public boolean hasPermissions(Collection<String> permissions) {
+        return false;
+    }
+
+    public String getPermissionMetadata(String meta) {
+        return null;
+    }
+
     @SubscribeEvent(priority = EventPriority.HIGH)
     public void onServerAddManagers(ServerAddManagersEvent event) {
         event.addManager(PermissionManager.class, PermissionManager::new);
@@ -7,37 +7,84 @@ import ru.craftlogic.api.command.CommandContext;
 import ru.craftlogic.api.server.PlayerManager;
 import ru.craftlogic.api.text.Text;
 import ru.craftlogic.api.world.OfflinePlayer;
+import ru.craftlogic.permissions.Contexts;
+import ru.craftlogic.permissions.Expiry;
+import ru.craftlogic.permissions.NameCache;
+import ru.craftlogic.permissions.Optimizer;
+import ru.craftlogic.permissions.PermissionView;
 import ru.craftlogic.permissions.GroupManager;
 import ru.craftlogic.permissions.PermissionManager;
+import ru.craftlogic.permissions.Snapshots;
 import ru.craftlogic.permissions.UserManager;
+import ru.craftlogic.permissions.audit.AuditRecord;
+import ru.craftlogic.permissions.audit.AuditRecord.Action;
+import ru.craftlogic.permissions.event.PermissionChangeEvent.*;
+import ru.craftlogic.permissions.util.Footprint;
 
 import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.*;
 
 import static ru.craftlogic.api.CraftMessages.parseDuration;
 
 public class CommandPermission extends CommandBase {
+    private static final int USERS_PER_PAGE = 10;
+    private static final int AUDIT_RECORDS = 10;
+    private static final int DIFF_LINES = 20;
+
     public CommandPermission() {
         super("perm", 4,
-            "group <group:PermGroup> permissions add|delete <value>",
+            "group <group:PermGroup> permissions add|delete <value:PermNode> in <context>",
+            "group <group:PermGroup> permissions add|delete <value:PermNode> <expiration> in <context>",
+            "group <group:PermGroup> permissions add|delete <value:PermNode>",
+            "group <group:PermGroup> permissions add|delete <value:PermNode> <expiration>",
             "group <group:PermGroup> permissions",
-            "group <group:PermGroup> metadata set <key> <value>...",
-            "group <group:PermGroup> metadata unset <key>",
-            "group <group:PermGroup> metadata <key>",
+            "group <group:PermGroup> metadata set <key:PermMetaKey> in <context> for <expiration> <value>...",
+            "group <group:PermGroup> metadata set <key:PermMetaKey> in <context> <value>...",
+            "group <group:PermGroup> metadata set <key:PermMetaKey> for <expiration> <value>...",
+            "group <group:PermGroup> metadata set <key:PermMetaKey> <value>...",
+            "group <group:PermGroup> metadata unset <key:PermMetaKey> in <context>",
+            "group <group:PermGroup> metadata unset <key:PermMetaKey>",
+            "group <group:PermGroup> metadata <key:PermMetaKey>",
             "group <group:PermGroup> metadata",
             "group <group:PermGroup> create <value>...",
+            "group <group:PermGroup> rename <value>",
+            "group <group:PermGroup> users name|expiry <page>",
+            "group <group:PermGroup> users name|expiry",
+            "group <group:PermGroup> users <page>",
             "group <group:PermGroup> create|delete|users",
             "group <group:PermGroup>",
-            "user <username:OfflinePlayer> groups add|delete <value>",
-            "user <username:OfflinePlayer> groups add|delete <value> <expiration>",
+            "user <username:OfflinePlayer> groups add|delete <value:PermGroup> in <context>",
+            "user <username:OfflinePlayer> groups add|delete <value:PermGroup> <expiration> in <context>",
+            "user <username:OfflinePlayer> groups add|delete <value:PermGroup>",
+            "user <username:OfflinePlayer> groups add|delete <value:PermGroup> <expiration>",
             "user <username:OfflinePlayer> groups",
-            "user <username:OfflinePlayer> permissions add|delete <value>",
+            "user <username:OfflinePlayer> permissions add|delete <value:PermNode> in <context>",
+            "user <username:OfflinePlayer> permissions add|delete <value:PermNode> <expiration> in <context>",
+            "user <username:OfflinePlayer> permissions add|delete <value:PermNode>",
+            "user <username:OfflinePlayer> permissions add|delete <value:PermNode> <expiration>",
             "user <username:OfflinePlayer> permissions",
-            "user <username:OfflinePlayer> metadata set <key> <value>...",
-            "user <username:OfflinePlayer> metadata unset <key>",
-            "user <username:OfflinePlayer> metadata <key>",
+            "user <username:OfflinePlayer> metadata set <key:PermMetaKey> in <context> for <expiration> <value>...",
+            "user <username:OfflinePlayer> metadata set <key:PermMetaKey> in <context> <value>...",
+            "user <username:OfflinePlayer> metadata set <key:PermMetaKey> for <expiration> <value>...",
+            "user <username:OfflinePlayer> metadata set <key:PermMetaKey> <value>...",
+            "user <username:OfflinePlayer> metadata unset <key:PermMetaKey> in <context>",
+            "user <username:OfflinePlayer> metadata unset <key:PermMetaKey>",
+            "user <username:OfflinePlayer> metadata <key:PermMetaKey>",
             "user <username:OfflinePlayer> metadata",
-            "user <username:OfflinePlayer>"
+            "user <username:OfflinePlayer>",
+            "audit user <username:OfflinePlayer>",
+            "audit group <group:PermGroup>",
+            "audit <since>",
+            "audit",
+            "memory",
+            "check <username:OfflinePlayer> <value:PermNode> in <context>",
+            "check <username:OfflinePlayer> <value:PermNode>",
+            "snapshot create <name>",
+            "snapshot diff|rollback <name:PermSnapshot>",
+            "snapshot list",
+            "optimize dry-run|apply",
+            "optimize"
         );
         Collections.addAll(aliases, "perms", "permissions", "permission");
     }
@@ -73,8 +120,12 @@ public class CommandPermission extends CommandBase {
                             groupDelete(ctx, permissionManager, defaultGroupName, groupName, group);
                             break;
                         }
+                        case "rename": {
+                            groupRename(ctx, permissionManager, defaultGroupName, groupName, group);
+                            break;
+                        }
                         case "users": {
-                            groupUsers(ctx, defaultGroupName, playerManager, current, groupName, group);
+                            groupUsers(ctx, permissionManager, defaultGroupName, playerManager, current, groupName, group);
                             break;
                         }
                     }
@@ -88,12 +139,7 @@ public class CommandPermission extends CommandBase {
             }
             case "user": {
                 String username = ctx.get("username").asString();
-                OfflinePlayer player = playerManager.getOffline(username);
-                if (player == null) {
-                    try {
-                        player = playerManager.getOffline(UUID.fromString(username));
-                    } catch (IllegalArgumentException ignored) {}
-                }
+                OfflinePlayer player = getOffline(playerManager, username);
                 if (player != null) {
                     UserManager.User user = permissionManager.getUser(player);
                     if (ctx.hasAction(1)) {
@@ -118,36 +164,304 @@ public class CommandPermission extends CommandBase {
                 }
                 break;
             }
+            case "audit": {
+                audit(ctx, permissionManager, playerManager, current);
+                break;
+            }
+            case "memory": {
+                memory(ctx, permissionManager);
+                break;
+            }
+            case "check": {
+                check(ctx, permissionManager, playerManager);
+                break;
+            }
+            case "snapshot": {
+                snapshot(ctx, permissionManager);
+                break;
+            }
+            case "optimize": {
+                optimize(ctx, permissionManager);
+                break;
+            }
+        }
+    }
+
+    private static OfflinePlayer getOffline(PlayerManager playerManager, String username) {
+        OfflinePlayer player = playerManager.getOffline(username);
+        if (player == null) {
+            try {
+                player = playerManager.getOffline(UUID.fromString(username));
+            } catch (IllegalArgumentException ignored) {}
+        }
+        return player;
+    }
+
+    private static void check(CommandContext ctx, PermissionManager permissionManager, PlayerManager playerManager) throws CommandException {
+        String username = ctx.get("username").asString();
+        OfflinePlayer player = getOffline(playerManager, username);
+        if (player == null) {
+            throw new CommandException("commands.generic.userNeverPlayed", username);
+        }
+        String permission = ctx.get("value").asString();
+        UserManager.User user = permissionManager.getUser(player);
+        String context = ctx.has("context") ? getContext(ctx) : user.context();
+        PermissionView.Explanation explanation = permissionManager.explain(user, permission, context);
+        String contextName = context.isEmpty() ? "global" : context;
+        ctx.sendMessage(
+            Text.translation("commands.perm.check." + (explanation.allowed ? "allowed" : "denied"))
+                .arg(username, Text::darkGray)
+                .arg(permission, Text::darkGray)
+                .arg(contextName, Text::darkGray)
+        );
+        if (explanation.negation != null) {
+            sendGrant(ctx, "negation", explanation.negation);
+        }
+        if (explanation.wildcard != null) {
+            sendGrant(ctx, "wildcard", explanation.wildcard);
+        }
+        if (explanation.grant != null) {
+            sendGrant(ctx, "grant", explanation.grant);
+        }
+        if (explanation.negation == null && explanation.wildcard == null && explanation.grant == null) {
+            ctx.sendMessage("commands.perm.check.missing");
+        }
+    }
+
+    private static void snapshot(CommandContext ctx, PermissionManager permissionManager) throws CommandException, IOException {
+        Snapshots snapshots = permissionManager.snapshots;
+        if (!permissionManager.isReady()) {
+            throw new CommandException("commands.perm.loading");
+        }
+        switch (ctx.action(1)) {
+            case "create": {
+                String name = ctx.get("name").asString();
+                Snapshots.Snapshot snapshot = snapshots.create(name, actor(ctx));
+                permissionManager.audit.log(AuditRecord.group(actor(ctx), Action.SNAPSHOT_CREATE, null, name, null, null));
+                ctx.sendMessage("commands.perm.snapshot.create.success", name, snapshot.groupCount(), snapshot.userCount(), snapshot.capturedCount());
+                break;
+            }
+            case "list": {
+                List<Snapshots.Snapshot> list = snapshots.list();
+                if (list.isEmpty()) {
+                    ctx.sendMessage("commands.perm.snapshot.list.empty");
+                }
+                SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                for (Snapshots.Snapshot snapshot : list) {
+                    ctx.sendMessage(
+                        Text.translation("commands.perm.snapshot.list.entry").gray()
+                            .arg(snapshot.name, Text::darkGray)
+                            .arg(format.format(new Date(snapshot.time)), Text::darkGray)
+                            .arg(snapshot.actor, Text::darkGray)
+                            .arg(String.valueOf(snapshot.groupCount()), Text::darkGray)
+                            .arg(String.valueOf(snapshot.userCount()), Text::darkGray)
+                            .arg(String.valueOf(snapshot.capturedCount()), Text::darkGray)
+                    );
+                }
+                break;
+            }
+            case "diff": {
+                String name = ctx.get("name").asString();
+                List<Snapshots.Change> changes = snapshots.diff(getSnapshot(snapshots, name));
+                if (changes.isEmpty()) {
+                    ctx.sendMessage("commands.perm.snapshot.diff.empty", name);
+                } else {
+                    ctx.sendMessage("commands.perm.snapshot.diff.header", changes.size(), name);
+                    sendChanges(ctx, permissionManager, changes);
+                }
+                break;
+            }
+            case "rollback": {
+                String name = ctx.get("name").asString();
+                List<Snapshots.Change> changes = permissionManager.rollback(getSnapshot(snapshots, name), actor(ctx));
+                if (changes.isEmpty()) {
+                    ctx.sendMessage("commands.perm.snapshot.rollback.empty", name);
+                } else {
+                    permissionManager.audit.log(AuditRecord.group(actor(ctx), Action.SNAPSHOT_ROLLBACK, null, name, String.valueOf(changes.size()), null));
+                    permissionManager.save(true);
+                    ctx.sendMessage("commands.perm.snapshot.rollback.success", changes.size(), name, Snapshots.UNDO);
+                    sendChanges(ctx, permissionManager, changes);
+                }
+                break;
+            }
+        }
+    }
+
+    private static Snapshots.Snapshot getSnapshot(Snapshots snapshots, String name) throws CommandException {
+        Snapshots.Snapshot snapshot = snapshots.get(name);
+        if (snapshot == null) {
+            throw new CommandException("commands.perm.snapshot.notFound", name);
+        }
+        return snapshot;
+    }
+
+    private static void optimize(CommandContext ctx, PermissionManager permissionManager) throws CommandException, IOException {
+        if (!permissionManager.isReady()) {
+            throw new CommandException("commands.perm.loading");
+        }
+        boolean apply = ctx.hasAction(1) && ctx.action(1).equals("apply");
+        Optimizer.Report report = permissionManager.optimize(apply, actor(ctx));
+        ctx.sendMessage("commands.perm.optimize.summary",
+            report.count(Optimizer.Finding.Kind.REDUNDANT),
+            report.count(Optimizer.Finding.Kind.SHADOWED),
+            report.count(Optimizer.Finding.Kind.DEAD),
+            report.unused.size()
+        );
+        ctx.sendMessage("commands.perm.optimize.nodes", report.storedBefore, report.storedAfter);
+        ctx.sendMessage("commands.perm.optimize.effective", report.builtBefore, report.builtAfter, report.distinctBefore, report.distinctAfter);
+        for (Optimizer.Finding finding : report.findings.subList(0, Math.min(report.findings.size(), DIFF_LINES))) {
+            ctx.sendMessage(Text.string(withName(permissionManager, finding.toString(), finding.user)).darkGray());
+        }
+        if (report.findings.size() > DIFF_LINES) {
+            ctx.sendMessage("commands.perm.snapshot.diff.more", report.findings.size() - DIFF_LINES);
+        }
+        for (GroupManager.Group group : report.unused) {
+            ctx.sendMessage("commands.perm.optimize.unused", group.name);
+        }
+        if (!apply) {
+            ctx.sendMessage("commands.perm.optimize.dryRun");
+        } else if (report.removed > 0 || report.deleted > 0) {
+            permissionManager.audit.log(AuditRecord.group(actor(ctx), Action.OPTIMIZE_APPLY, null, Optimizer.SNAPSHOT, String.valueOf(report.removed), null));
+            permissionManager.save(true);
+            ctx.sendMessage("commands.perm.optimize.applied", report.removed, report.deleted, Optimizer.SNAPSHOT);
+        } else {
+            ctx.sendMessage("commands.perm.optimize.nothing");
+        }
+    }
+
+    private static void sendChanges(CommandContext ctx, PermissionManager permissionManager, List<Snapshots.Change> changes) {
+        for (Snapshots.Change change : changes.subList(0, Math.min(changes.size(), DIFF_LINES))) {
+            ctx.sendMessage(Text.string(withName(permissionManager, change.toString(), change.user)).darkGray());
+        }
+        if (changes.size() > DIFF_LINES) {
+            ctx.sendMessage("commands.perm.snapshot.diff.more", changes.size() - DIFF_LINES);
+        }
+    }
+
+    private static String withName(PermissionManager permissionManager, String line, UUID id) {
+        if (id != null) {
+            String name = permissionManager.names.get(id);
+            if (name != null) {
+                line = line.replace(id.toString(), name);
+            }
+        }
+        return line;
+    }
+
+    private static void sendGrant(CommandContext ctx, String type, PermissionView.Grant grant) {
+        ctx.sendMessage(
+            Text.translation("commands.perm.check." + type).gray()
+                .arg(grant.node, Text::darkGray)
+                .arg(grant.source, Text::darkGray)
+                .arg(String.valueOf(grant.depth), Text::darkGray)
+                .arg(grant.context.isEmpty() ? "global" : grant.context, Text::darkGray)
+        );
+    }
+
+    private static void memory(CommandContext ctx, PermissionManager permissionManager) {
+        Footprint footprint = new Footprint();
+        Collection<UserManager.User> users = permissionManager.userManager.getLoadedUsers();
+        long userBytes = 0;
+        for (UserManager.User user : users) {
+            userBytes += user.footprint(footprint);
+        }
+        Collection<GroupManager.Group> groups = permissionManager.groupManager.groups.values();
+        long groupBytes = 0;
+        for (GroupManager.Group group : groups) {
+            groupBytes += group.footprint(footprint);
         }
+        ctx.sendMessage("commands.perm.memory.users", users.size(), users.isEmpty() ? 0 : userBytes / users.size(), userBytes / 1024);
+        ctx.sendMessage("commands.perm.memory.groups", groups.size(), groups.isEmpty() ? 0 : groupBytes / groups.size(), groupBytes / 1024);
+        ctx.sendMessage("commands.perm.memory.strings", footprint.stringCount(), footprint.stringBytes() / 1024);
     }
 
-    private static void groupUsers(CommandContext ctx, String defaultGroupName, PlayerManager playerManager, long current, String groupName, GroupManager.Group group) throws CommandException {
+    private static void audit(CommandContext ctx, PermissionManager permissionManager, PlayerManager playerManager, long current) throws CommandException, IOException {
+        UUID user = null;
+        String group = null;
+        long since = 0;
+        if (ctx.hasAction(1)) {
+            switch (ctx.action(1)) {
+                case "user": {
+                    String username = ctx.get("username").asString();
+                    OfflinePlayer player = getOffline(playerManager, username);
+                    if (player == null) {
+                        throw new CommandException("commands.generic.userNeverPlayed", username);
+                    }
+                    user = player.getId();
+                    break;
+                }
+                case "group": {
+                    group = ctx.get("group").asString();
+                    break;
+                }
+            }
+        }
+        if (ctx.has("since")) {
+            since = current - ctx.getIfPresent("since", arg -> arg.asDuration()).orElse(0L);
+        }
+        List<AuditRecord> records = permissionManager.audit.query(user, group, since, Long.MAX_VALUE, AUDIT_RECORDS);
+        if (records.isEmpty()) {
+            ctx.sendMessage("commands.perm.audit.empty");
+        } else {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            for (AuditRecord record : records) {
+                ctx.sendMessage(
+                    Text.string(format.format(new Date(record.time)) + " ").gray()
+                        .appendText(record.toString(), Text::darkGray)
+                );
+            }
+        }
+    }
+
+    private static void groupUsers(CommandContext ctx, PermissionManager permissionManager, String defaultGroupName, PlayerManager playerManager, long current, String groupName, GroupManager.Group group) throws CommandException {
         if (group == null) {
             throw new CommandException("commands.perm.group.notFound", groupName);
         }
         if (groupName.equalsIgnoreCase(defaultGroupName)) {
             ctx.sendMessage("commands.perm.info.group.members.everyone");
         } else {
-            List<String> users = new ArrayList<>();
-            for (Map.Entry<UserManager.User, Long> e : group.users().entrySet()) {
-                UserManager.User user = e.getKey();
+            NameCache names = permissionManager.names;
+            Map<UserManager.User, Long> members = permissionManager.groupManager.groupUsersCache.getOrDefault(group, Collections.emptyMap());
+            List<Map.Entry<UserManager.User, Long>> users = new ArrayList<>(members.size());
+            List<UUID> unresolved = new ArrayList<>();
+            for (Map.Entry<UserManager.User, Long> e : members.entrySet()) {
                 long expiration = e.getValue();
-                UUID id = user.id();
-                OfflinePlayer p = playerManager.getOffline(id);
-                if (expiration > current) {
-                    String suffix = ", expires in: " + parseDuration(expiration - current);
-                    if (p != null && p.getName() != null) {
-                        users.add(id.toString() + " (" + p.getName() + ")" + suffix);
-                    } else {
-                        users.add(id.toString() + suffix);
+                if (expiration == 0 || expiration >= current) {
+                    users.add(e);
+                    if (names.get(e.getKey().id()) == null) {
+                        unresolved.add(e.getKey().id());
                     }
-                } else if (p != null && p.getName() != null) {
-                    users.add(id.toString() + " (" + p.getName() + ")");
-                } else {
-                    users.add(id.toString());
                 }
             }
-            ctx.sendMessage("commands.perm.info.group.members", users.toString());
+            String sort = ctx.hasAction(2) ? ctx.action(2) : "name";
+            if (sort.equals("expiry")) {
+                users.sort(Comparator.comparingLong(e -> e.getValue() == 0 ? Long.MAX_VALUE : e.getValue()));
+            } else {
+                users.sort(Comparator.comparing(e -> {
+                    String name = names.get(e.getKey().id());
+                    return name != null ? name.toLowerCase() : "~" + e.getKey().id();
+                }));
+            }
+            int pages = Math.max(1, (users.size() + USERS_PER_PAGE - 1) / USERS_PER_PAGE);
+            int page = ctx.has("page") ? ctx.get("page").asInt() : 1;
+            if (page < 1 || page > pages) {
+                throw new CommandException("commands.perm.info.group.members.noPage", page, pages);
+            }
+            ctx.sendMessage("commands.perm.info.group.members.page", groupName, page, pages, users.size());
+            for (Map.Entry<UserManager.User, Long> e : users.subList((page - 1) * USERS_PER_PAGE, Math.min(users.size(), page * USERS_PER_PAGE))) {
+                UUID id = e.getKey().id();
+                String name = names.get(id);
+                long expiration = e.getValue();
+                String line = name != null ? name + " (" + id + ")" : id.toString();
+                if (expiration > current) {
+                    line += ", expires in: " + parseDuration(expiration - current);
+                }
+                ctx.sendMessage(Text.string("- ").appendText(line, Text::darkGray));
+            }
+            int queued = names.request(playerManager, unresolved);
+            if (queued > 0) {
+                ctx.sendMessage("commands.perm.info.group.members.resolving", queued);
+            }
         }
     }
 
@@ -158,12 +472,37 @@ public class CommandPermission extends CommandBase {
         if (groupName.equals(defaultGroupName)) {
             throw new CommandException("commands.perm.group.delete.unable", groupName);
         } else {
-            boolean removed = permissionManager.groupManager.groups.remove(groupName, group);
+            int members = group.users().size();
+            int children = permissionManager.groupManager.children(groupName).size();
+            boolean removed = permissionManager.deleteGroup(group);
             if (removed) {
+                permissionManager.audit.log(AuditRecord.group(actor(ctx), Action.GROUP_DELETE, groupName, null, null, null));
                 permissionManager.save(true);
             }
             ctx.sendMessage("commands.perm.group.delete.success", groupName);
+            if (removed && (members > 0 || children > 0)) {
+                ctx.sendMessage("commands.perm.group.delete.cascade", members, children, group.parent);
+            }
+        }
+    }
+
+    private static void groupRename(CommandContext ctx, PermissionManager permissionManager, String defaultGroupName, String groupName, GroupManager.Group group) throws CommandException, IOException {
+        if (group == null) {
+            throw new CommandException("commands.perm.group.notFound", groupName);
+        }
+        String name = ctx.get("value").asString();
+        if (!permissionManager.isReady()) {
+            throw new CommandException("commands.perm.loading");
+        }
+        if (permissionManager.getGroup(name) != null) {
+            throw new CommandException("commands.perm.group.create.exists", name);
         }
+        if (groupName.equals(defaultGroupName) || !permissionManager.renameGroup(group, name)) {
+            throw new CommandException("commands.perm.group.rename.unable", groupName);
+        }
+        permissionManager.audit.log(AuditRecord.group(actor(ctx), Action.GROUP_RENAME, groupName, null, name, null));
+        permissionManager.save(true);
+        ctx.sendMessage("commands.perm.group.rename.success", groupName, name);
     }
 
     private void groupMetadata(CommandContext ctx, PermissionManager permissionManager, String groupName, GroupManager.Group group) throws IOException, CommandException {
@@ -172,20 +511,45 @@ public class CommandPermission extends CommandBase {
         }
         if (ctx.hasAction(2)) {
             String key = ctx.get("key").asString();
+            Map<String, String> metadata = group.metadataIn(getContext(ctx));
+            Expiry expiry = Expiry.metadata(getContext(ctx), key);
             switch (ctx.action(2)) {
                 case "set": {
                     String value = ctx.get("value").asString();
-                    boolean updated = group.metadata.put(key, value) == null;
+                    long expiration = getExpiration(ctx);
+                    boolean updated;
+                    synchronized (group) {
+                        String previous = metadata.put(key, value);
+                        boolean inserted = previous == null;
+                        updated = inserted || !previous.equals(value) || expiration != 0 || group.expirations.containsKey(expiry);
+                        if (inserted) {
+                            permissionManager.metadataIndex.add(key);
+                        }
+                        if (updated) {
+                            permissionManager.setExpiration(group, group.expirations, expiry, expiration);
+                        }
+                    }
                     ctx.sendMessage("commands.perm.group.metadata.set." + (updated ? "success" : "unable"), key, value, groupName);
                     if (updated) {
+                        permissionManager.audit.log(AuditRecord.group(actor(ctx), Action.GROUP_METADATA_SET, groupName, key, value, getContext(ctx)));
+                        permissionManager.groupChanged(group, GroupChanged.Type.METADATA, key);
                         permissionManager.save(true);
                     }
                     break;
                 }
                 case "unset": {
-                    boolean deleted = group.metadata.remove(key) != null;
+                    boolean deleted;
+                    synchronized (group) {
+                        deleted = metadata.remove(key) != null;
+                        if (deleted) {
+                            permissionManager.metadataIndex.remove(key);
+                            group.expirations.remove(expiry);
+                        }
+                    }
                     ctx.sendMessage("commands.perm.group.metadata.unset." + (deleted ? "success" : "unable"), key, groupName);
                     if (deleted) {
+                        permissionManager.audit.log(AuditRecord.group(actor(ctx), Action.GROUP_METADATA_UNSET, groupName, key, null, getContext(ctx)));
+                        permissionManager.groupChanged(group, GroupChanged.Type.METADATA, key);
                         permissionManager.save(true);
                     }
                     break;
@@ -202,19 +566,44 @@ public class CommandPermission extends CommandBase {
         }
         if (ctx.has("value")) {
             String perm = ctx.get("value").asString();
+            Set<String> permissions = group.permissionsIn(getContext(ctx));
+            Expiry expiry = Expiry.permission(getContext(ctx), perm);
             switch (ctx.action(2)) {
                 case "add": {
-                    boolean added = group.permissions.add(perm);
+                    long expiration = getExpiration(ctx);
+                    boolean added;
+                    synchronized (group) {
+                        permissionManager.nodeIndex.add(perm);
+                        boolean inserted = permissions.add(perm);
+                        added = inserted || expiration != 0 || group.expirations.containsKey(expiry);
+                        if (!inserted) {
+                            permissionManager.nodeIndex.remove(perm);
+                        }
+                        if (added) {
+                            permissionManager.setExpiration(group, group.expirations, expiry, expiration);
+                        }
+                    }
                     ctx.sendMessage("commands.perm.group.permissions.add." + (added ? "success" : "unable"), perm, groupName);
                     if (added) {
+                        permissionManager.audit.log(AuditRecord.group(actor(ctx), Action.GROUP_PERMISSION_ADD, groupName, perm, expiration != 0 ? String.valueOf(expiration) : null, getContext(ctx)));
+                        permissionManager.groupChanged(group, GroupChanged.Type.NODE, perm);
                         permissionManager.save(true);
                     }
                     break;
                 }
                 case "delete": {
-                    boolean deleted = group.permissions.remove(perm);
+                    boolean deleted;
+                    synchronized (group) {
+                        deleted = permissions.remove(perm);
+                        if (deleted) {
+                            permissionManager.nodeIndex.remove(perm);
+                            group.expirations.remove(expiry);
+                        }
+                    }
                     ctx.sendMessage("commands.perm.group.permissions.delete." + (deleted ? "success" : "unable"), perm, groupName);
                     if (deleted) {
+                        permissionManager.audit.log(AuditRecord.group(actor(ctx), Action.GROUP_PERMISSION_REMOVE, groupName, perm, null, getContext(ctx)));
+                        permissionManager.groupChanged(group, GroupChanged.Type.NODE, perm);
                         permissionManager.save(true);
                     }
                     break;
@@ -225,23 +614,48 @@ public class CommandPermission extends CommandBase {
         }
     }
 
-    private void userMetadata(CommandContext ctx, PermissionManager permissionManager, OfflinePlayer player, UserManager.User user) throws IOException {
+    private void userMetadata(CommandContext ctx, PermissionManager permissionManager, OfflinePlayer player, UserManager.User user) throws IOException, CommandException {
         if (ctx.hasAction(2)) {
             String key = ctx.get("key").asString();
+            Map<String, String> metadata = user.metadataIn(getContext(ctx));
+            Expiry expiry = Expiry.metadata(getContext(ctx), key);
             switch (ctx.action(2)) {
                 case "set": {
                     String value = ctx.get("value").asString();
-                    boolean updated = user.metadata.put(key, value) == null;
+                    long expiration = getExpiration(ctx);
+                    boolean updated;
+                    synchronized (user) {
+                        String previous = metadata.put(key, value);
+                        boolean inserted = previous == null;
+                        updated = inserted || !previous.equals(value) || expiration != 0 || user.expirations.containsKey(expiry);
+                        if (inserted) {
+                            permissionManager.metadataIndex.add(key);
+                        }
+                        if (updated) {
+                            permissionManager.setExpiration(user, user.expirations, expiry, expiration);
+                        }
+                    }
                     ctx.sendMessage("commands.perm.user.metadata.set." + (updated ? "success" : "unable"), key, value, player.getName());
                     if (updated) {
+                        permissionManager.audit.log(AuditRecord.user(actor(ctx), Action.USER_METADATA_SET, user.id(), null, key, value, getContext(ctx)));
+                        permissionManager.userChanged(user, new UserMetadataChanged(user.id(), key, getContext(ctx)));
                         permissionManager.save(true);
                     }
                     break;
                 }
                 case "unset": {
-                    boolean deleted = user.metadata.remove(key) != null;
+                    boolean deleted;
+                    synchronized (user) {
+                        deleted = metadata.remove(key) != null;
+                        if (deleted) {
+                            permissionManager.metadataIndex.remove(key);
+                            user.expirations.remove(expiry);
+                        }
+                    }
                     ctx.sendMessage("commands.perm.user.metadata.unset." + (deleted ? "success" : "unable"), key, player.getName());
                     if (deleted) {
+                        permissionManager.audit.log(AuditRecord.user(actor(ctx), Action.USER_METADATA_UNSET, user.id(), null, key, null, getContext(ctx)));
+                        permissionManager.userChanged(user, new UserMetadataChanged(user.id(), key, getContext(ctx)));
                         permissionManager.save(true);
                     }
                     break;
@@ -252,22 +666,47 @@ public class CommandPermission extends CommandBase {
         }
     }
 
-    private void userPermissions(CommandContext ctx, PermissionManager permissionManager, String username, OfflinePlayer player, UserManager.User user) throws IOException {
+    private void userPermissions(CommandContext ctx, PermissionManager permissionManager, String username, OfflinePlayer player, UserManager.User user) throws IOException, CommandException {
         if (ctx.has("value")) {
             String perm = ctx.get("value").asString();
+            Set<String> permissions = user.permissionsIn(getContext(ctx));
+            Expiry expiry = Expiry.permission(getContext(ctx), perm);
             switch (ctx.action(2)) {
                 case "add": {
-                    boolean added = user.permissions.add(perm);
+                    long expiration = getExpiration(ctx);
+                    boolean added;
+                    synchronized (user) {
+                        permissionManager.nodeIndex.add(perm);
+                        boolean inserted = permissions.add(perm);
+                        added = inserted || expiration != 0 || user.expirations.containsKey(expiry);
+                        if (!inserted) {
+                            permissionManager.nodeIndex.remove(perm);
+                        }
+                        if (added) {
+                            permissionManager.setExpiration(user, user.expirations, expiry, expiration);
+                        }
+                    }
                     ctx.sendMessage("commands.perm.user.permissions.add." + (added ? "success" : "unable"), perm, username);
                     if (added) {
+                        permissionManager.audit.log(AuditRecord.user(actor(ctx), Action.USER_PERMISSION_ADD, user.id(), null, perm, expiration != 0 ? String.valueOf(expiration) : null, getContext(ctx)));
+                        permissionManager.userChanged(user, new UserNodeChanged(user.id(), perm, getContext(ctx)));
                         permissionManager.save(true);
                     }
                     break;
                 }
                 case "delete": {
-                    boolean deleted = user.permissions.remove(perm);
+                    boolean deleted;
+                    synchronized (user) {
+                        deleted = permissions.remove(perm);
+                        if (deleted) {
+                            permissionManager.nodeIndex.remove(perm);
+                            user.expirations.remove(expiry);
+                        }
+                    }
                     ctx.sendMessage("commands.perm.user.permissions.delete." + (deleted ? "success" : "unable"), perm, username);
                     if (deleted) {
+                        permissionManager.audit.log(AuditRecord.user(actor(ctx), Action.USER_PERMISSION_REMOVE, user.id(), null, perm, null, getContext(ctx)));
+                        permissionManager.userChanged(user, new UserNodeChanged(user.id(), perm, getContext(ctx)));
                         permissionManager.save(true);
                     }
                     break;
@@ -285,25 +724,22 @@ public class CommandPermission extends CommandBase {
                 .orElse(0L);
             GroupManager.Group group = permissionManager.getGroup(groupName);
             if (group != null) {
+                String context = getContext(ctx);
                 switch (ctx.action(2)) {
                     case "add": {
-                        boolean added = !user.groups.containsKey(group);
-                        if (added) {
-                            user.groups.put(group, expiration);
-                        }
+                        boolean added = permissionManager.addMembership(user, group, expiration, context);
                         ctx.sendMessage("commands.perm.user.groups.add." + (added ? "success" : "unable"), groupName, username);
                         if (added) {
+                            permissionManager.audit.log(AuditRecord.user(actor(ctx), Action.USER_GROUP_ADD, user.id(), groupName, null, expiration != 0 ? String.valueOf(expiration) : null, context));
                             permissionManager.save(true);
                         }
                         break;
                     }
                     case "delete": {
-                        boolean deleted = user.groups.containsKey(group);
-                        if (deleted) {
-                            user.groups.remove(group);
-                        }
+                        boolean deleted = permissionManager.removeMembership(user, group, context);
                         ctx.sendMessage("commands.perm.user.groups.delete." + (deleted ? "success" : "unable"), groupName, username);
                         if (deleted) {
+                            permissionManager.audit.log(AuditRecord.user(actor(ctx), Action.USER_GROUP_REMOVE, user.id(), groupName, null, null, context));
                             permissionManager.save(true);
                         }
                         break;
@@ -351,11 +787,21 @@ public class CommandPermission extends CommandBase {
         for (String s : user.permissions(false)) {
             ctx.sendMessage(
                 Text.string("| ").gray()
-                    .appendText(s, d ->
+                    .appendText(s + expires(user.expirations, Expiry.permission(Contexts.GLOBAL, s)), d ->
                         d.darkGray().suggestCommand("/perm user " + username + " permissions delete " + s)
                     )
             );
         }
+        for (Map.Entry<String, Set<String>> e : user.contextPermissions.entrySet()) {
+            for (String s : e.getValue()) {
+                ctx.sendMessage(
+                    Text.string("| [" + e.getKey() + "] ").gray()
+                        .appendText(s + expires(user.expirations, Expiry.permission(e.getKey(), s)), d ->
+                            d.darkGray().suggestCommand("/perm user " + username + " permissions delete " + s + " in " + e.getKey())
+                        )
+                );
+            }
+        }
     }
 
     private void sendMetadata(UserManager.User user, String username, CommandContext ctx) {
@@ -367,11 +813,21 @@ public class CommandPermission extends CommandBase {
         for (Map.Entry<String, String> e : user.metadata(false).entrySet()) {
             ctx.sendMessage(
                 Text.string("| " + e.getKey() + " = ").gray()
-                    .appendText(e.getValue(), d ->
+                    .appendText(e.getValue() + expires(user.expirations, Expiry.metadata(Contexts.GLOBAL, e.getKey())), d ->
                         d.darkGray().suggestCommand("/perm user " + username + " metadata unset  " + e.getKey())
                     )
             );
         }
+        for (Map.Entry<String, Map<String, String>> c : user.contextMetadata.entrySet()) {
+            for (Map.Entry<String, String> e : c.getValue().entrySet()) {
+                ctx.sendMessage(
+                    Text.string("| [" + c.getKey() + "] " + e.getKey() + " = ").gray()
+                        .appendText(e.getValue() + expires(user.expirations, Expiry.metadata(c.getKey(), e.getKey())), d ->
+                            d.darkGray().suggestCommand("/perm user " + username + " metadata unset " + e.getKey() + " in " + c.getKey())
+                        )
+                );
+            }
+        }
     }
 
     private void sendPermissions(GroupManager.Group group, CommandContext ctx) {
@@ -383,11 +839,21 @@ public class CommandPermission extends CommandBase {
         for (String s : group.permissions(false)) {
             ctx.sendMessage(
                 Text.string("| ").gray()
-                    .appendText(s, d ->
+                    .appendText(s + expires(group.expirations, Expiry.permission(Contexts.GLOBAL, s)), d ->
                         d.darkGray().suggestCommand("/perm group " + group.name + " permissions delete " + s)
                     )
             );
         }
+        for (Map.Entry<String, Set<String>> e : group.contextPermissions.entrySet()) {
+            for (String s : e.getValue()) {
+                ctx.sendMessage(
+                    Text.string("| [" + e.getKey() + "] ").gray()
+                        .appendText(s + expires(group.expirations, Expiry.permission(e.getKey(), s)), d ->
+                            d.darkGray().suggestCommand("/perm group " + group.name + " permissions delete " + s + " in " + e.getKey())
+                        )
+                );
+            }
+        }
     }
 
     private void sendMetadata(GroupManager.Group group, CommandContext ctx) {
@@ -399,11 +865,31 @@ public class CommandPermission extends CommandBase {
         for (Map.Entry<String, String> e : group.metadata(false).entrySet()) {
             ctx.sendMessage(
                 Text.string("| " + e.getKey() + " = ").gray()
-                    .appendText(e.getValue(), d ->
+                    .appendText(e.getValue() + expires(group.expirations, Expiry.metadata(Contexts.GLOBAL, e.getKey())), d ->
                         d.darkGray().suggestCommand("/perm group " + group.name + " metadata unset " + e.getKey())
                     )
             );
         }
+        for (Map.Entry<String, Map<String, String>> c : group.contextMetadata.entrySet()) {
+            for (Map.Entry<String, String> e : c.getValue().entrySet()) {
+                ctx.sendMessage(
+                    Text.string("| [" + c.getKey() + "] " + e.getKey() + " = ").gray()
+                        .appendText(e.getValue() + expires(group.expirations, Expiry.metadata(c.getKey(), e.getKey())), d ->
+                            d.darkGray().suggestCommand("/perm group " + group.name + " metadata unset " + e.getKey() + " in " + c.getKey())
+                        )
+                );
+            }
+        }
+    }
+
+    private static String expires(Map<Expiry, Long> expirations, Expiry expiry) {
+        long expiration = expirations.getOrDefault(expiry, 0L);
+        long current = System.currentTimeMillis();
+        return expiration > current ? " (expires in " + parseDuration(expiration - current) + ")" : "";
+    }
+
+    private static long getExpiration(CommandContext ctx) throws CommandException {
+        return ctx.getIfPresent("expiration", arg -> arg.asDuration() + System.currentTimeMillis()).orElse(0L);
     }
 
     private void sendGroups(UserManager.User user, String username, CommandContext ctx) {
@@ -420,6 +906,34 @@ public class CommandPermission extends CommandBase {
                     )
             );
         }
+        for (Map.Entry<String, Map<GroupManager.Group, Long>> c : user.contextGroups.entrySet()) {
+            for (Map.Entry<GroupManager.Group, Long> e : c.getValue().entrySet()) {
+                GroupManager.Group g = e.getKey();
+                long expiration = e.getValue();
+                long current = System.currentTimeMillis();
+                ctx.sendMessage(
+                    Text.string("- [" + c.getKey() + "] ")
+                        .appendText(g.name + (expiration > current ? " (expires in " + parseDuration(expiration - current) + ")" : ""), d ->
+                            d.darkGray().suggestCommand("/perm user " + username + " groups delete " + g.name + " in " + c.getKey())
+                        )
+                );
+            }
+        }
+    }
+
+    private static String actor(CommandContext ctx) {
+        return ctx.sender().getName();
+    }
+
+    private static String getContext(CommandContext ctx) throws CommandException {
+        if (!ctx.has("context")) {
+            return Contexts.GLOBAL;
+        }
+        String context = ctx.get("context").asString();
+        if (!Contexts.isValid(context)) {
+            throw new CommandException("commands.perm.context.invalid", context);
+        }
+        return Contexts.normalize(context);
     }
 
     private void groupCreate(PermissionManager permissionManager, CommandContext ctx, String groupName) throws Exception {
@@ -442,6 +956,8 @@ public class CommandPermission extends CommandBase {
         }
         GroupManager.Group group = permissionManager.groupManager.new Group(groupName, parent, new HashSet<>(), new HashMap<>(), priority);
         permissionManager.groupManager.groups.put(groupName, group);
+        permissionManager.groupCreated(group);
+        permissionManager.audit.log(AuditRecord.group(actor(ctx), Action.GROUP_CREATE, groupName, null, parent, null));
         permissionManager.save(true);
         ctx.sendMessage("commands.perm.group.create.success", groupName);
     }
@@ -0,0 +1,183 @@
+package ru.craftlogic.permissions.event;
+
+import net.minecraftforge.fml.common.eventhandler.Event;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+public class PermissionChangeEvent extends Event {
+    private final Set<UUID> affectedUsers;
+    private final boolean everyone;
+
+    protected PermissionChangeEvent(Set<UUID> affectedUsers, boolean everyone) {
+        this.affectedUsers = Collections.unmodifiableSet(affectedUsers);
+        this.everyone = everyone;
+    }
+
+    public Set<UUID> getAffectedUsers() {
+        return this.affectedUsers;
+    }
+
+    public boolean affectsEveryone() {
+        return this.everyone;
+    }
+
+    public boolean affects(UUID id) {
+        return this.everyone || this.affectedUsers.contains(id);
+    }
+
+    public PermissionChangeEvent coalesce(PermissionChangeEvent previous) {
+        return this;
+    }
+
+    protected boolean covers(PermissionChangeEvent previous) {
+        return this.everyone || !previous.everyone && this.affectedUsers.containsAll(previous.affectedUsers);
+    }
+
+    protected Set<UUID> affectedWith(PermissionChangeEvent previous) {
+        if (this.everyone || previous.everyone) {
+            return Collections.emptySet();
+        }
+        Set<UUID> affected = new HashSet<>(previous.affectedUsers);
+        affected.addAll(this.affectedUsers);
+        return affected;
+    }
+
+    public static class UserNodeChanged extends PermissionChangeEvent {
+        public final UUID user;
+        public final String node, context;
+
+        public UserNodeChanged(UUID user, String node, String context) {
+            super(Collections.singleton(user), false);
+            this.user = user;
+            this.node = node;
+            this.context = context;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof UserNodeChanged)) return false;
+            UserNodeChanged e = (UserNodeChanged) o;
+            return this.user.equals(e.user) && this.node.equals(e.node) && this.context.equals(e.context);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.user, this.node, this.context);
+        }
+    }
+
+    public static class UserMetadataChanged extends PermissionChangeEvent {
+        public final UUID user;
+        public final String key, context;
+
+        public UserMetadataChanged(UUID user, String key, String context) {
+            super(Collections.singleton(user), false);
+            this.user = user;
+            this.key = key;
+            this.context = context;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof UserMetadataChanged)) return false;
+            UserMetadataChanged e = (UserMetadataChanged) o;
+            return this.user.equals(e.user) && this.key.equals(e.key) && this.context.equals(e.context);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.user, this.key, this.context);
+        }
+    }
+
+    public static class MembershipChanged extends PermissionChangeEvent {
+        public final UUID user;
+        public final String group;
+        public final Type type;
+
+        public MembershipChanged(UUID user, String group, Type type) {
+            super(Collections.singleton(user), false);
+            this.user = user;
+            this.group = group;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MembershipChanged)) return false;
+            MembershipChanged e = (MembershipChanged) o;
+            return this.user.equals(e.user) && this.group.equals(e.group) && this.type == e.type;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.user, this.group, this.type);
+        }
+
+        public enum Type {
+            ADDED, REMOVED, EXPIRED
+        }
+    }
+
+    public static class GroupChanged extends PermissionChangeEvent {
+        public final String group;
+        public final Type type;
+        public final String key;
+
+        public GroupChanged(String group, Type type, String key, Set<UUID> affectedUsers, boolean everyone) {
+            super(affectedUsers, everyone);
+            this.group = group;
+            this.type = type;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof GroupChanged)) return false;
+            GroupChanged e = (GroupChanged) o;
+            return this.group.equals(e.group) && this.type == e.type && Objects.equals(this.key, e.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.group, this.type, this.key);
+        }
+
+        @Override
+        public PermissionChangeEvent coalesce(PermissionChangeEvent previous) {
+            return this.covers(previous) ? this : new GroupChanged(this.group, this.type, this.key, this.affectedWith(previous), this.affectsEveryone() || previous.affectsEveryone());
+        }
+
+        public enum Type {
+            NODE, METADATA, PARENT, PRIORITY, NAME
+        }
+    }
+
+    public static class GroupDeleted extends PermissionChangeEvent {
+        public final String group;
+
+        public GroupDeleted(String group, Set<UUID> affectedUsers, boolean everyone) {
+            super(affectedUsers, everyone);
+            this.group = group;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof GroupDeleted && this.group.equals(((GroupDeleted) o).group);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.group.hashCode();
+        }
+
+        @Override
+        public PermissionChangeEvent coalesce(PermissionChangeEvent previous) {
+            return this.covers(previous) ? this : new GroupDeleted(this.group, this.affectedWith(previous), this.affectsEveryone() || previous.affectsEveryone());
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package ru.craftlogic.permissions.network;
+
+import ru.craftlogic.api.network.AdvancedBuffer;
+import ru.craftlogic.api.network.AdvancedMessage;
+import ru.craftlogic.api.network.AdvancedNetwork;
+import ru.craftlogic.permissions.CraftPermissions;
+
+import java.util.*;
+
+public class MessagePermissions extends AdvancedMessage {
+    private static final int MAX_LENGTH = Short.MAX_VALUE;
+    private static final int MAX_PAYLOAD = 1 << 18;
+
+    private boolean full;
+    private Collection<String> granted, revoked;
+    private Map<String, String> metadataSet;
+    private Collection<String> metadataUnset;
+
+    public MessagePermissions() {}
+
+    private MessagePermissions(boolean full, Collection<String> granted, Collection<String> revoked,
+                               Map<String, String> metadataSet, Collection<String> metadataUnset) {
+        this.full = full;
+        this.granted = granted;
+        this.revoked = revoked;
+        this.metadataSet = metadataSet;
+        this.metadataUnset = metadataUnset;
+    }
+
+    public static List<MessagePermissions> snapshot(Set<String> permissions, Map<String, String> metadata) {
+        return split(true, permissions, Collections.emptySet(), metadata, Collections.emptySet());
+    }
+
+    public static List<MessagePermissions> delta(Collection<String> granted, Collection<String> revoked,
+                                                 Map<String, String> metadataSet, Collection<String> metadataUnset) {
+        return split(false, granted, revoked, metadataSet, metadataUnset);
+    }
+
+    private static List<MessagePermissions> split(boolean full, Collection<String> granted, Collection<String> revoked,
+                                                  Map<String, String> metadataSet, Collection<String> metadataUnset) {
+        Chunks chunks = new Chunks(full);
+        for (String permission : granted) {
+            if (chunks.fits(permission)) {
+                chunks.next(size(permission)).granted.add(permission);
+            }
+        }
+        for (String permission : revoked) {
+            if (chunks.fits(permission)) {
+                chunks.next(size(permission)).revoked.add(permission);
+            }
+        }
+        for (Map.Entry<String, String> e : metadataSet.entrySet()) {
+            if (chunks.fits(e.getKey()) && chunks.fits(e.getValue())) {
+                chunks.next(size(e.getKey()) + size(e.getValue())).metadataSet.put(e.getKey(), e.getValue());
+            }
+        }
+        for (String key : metadataUnset) {
+            if (chunks.fits(key)) {
+                chunks.next(size(key)).metadataUnset.add(key);
+            }
+        }
+        return chunks.messages;
+    }
+
+    private static int size(String value) {
+        return 3 + value.length() * 3;
+    }
+
+    @Override
+    public AdvancedNetwork getNetwork() {
+        return CraftPermissions.NETWORK;
+    }
+
+    @Override
+    protected void read(AdvancedBuffer buf) {
+        this.full = buf.readBoolean();
+        this.granted = readStrings(buf);
+        this.revoked = readStrings(buf);
+        int count = buf.readVarInt();
+        this.metadataSet = new HashMap<>(count);
+        for (int i = 0; i < count; i++) {
+            this.metadataSet.put(buf.readString(MAX_LENGTH), buf.readString(MAX_LENGTH));
+        }
+        this.metadataUnset = readStrings(buf);
+    }
+
+    @Override
+    protected void write(AdvancedBuffer buf) {
+        buf.writeBoolean(this.full);
+        writeStrings(buf, this.granted);
+        writeStrings(buf, this.revoked);
+        buf.writeVarInt(this.metadataSet.size());
+        for (Map.Entry<String, String> e : this.metadataSet.entrySet()) {
+            buf.writeString(e.getKey());
+            buf.writeString(e.getValue());
+        }
+        writeStrings(buf, this.metadataUnset);
+    }
+
+    private static List<String> readStrings(AdvancedBuffer buf) {
+        int count = buf.readVarInt();
+        List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(buf.readString(MAX_LENGTH));
+        }
+        return result;
+    }
+
+    private static void writeStrings(AdvancedBuffer buf, Collection<String> strings) {
+        buf.writeVarInt(strings.size());
+        for (String s : strings) {
+            buf.writeString(s);
+        }
+    }
+
+    public boolean isFull() {
+        return this.full;
+    }
+
+    public Collection<String> getGranted() {
+        return this.granted;
+    }
+
+    public Collection<String> getRevoked() {
+        return this.revoked;
+    }
+
+    public Map<String, String> getMetadataSet() {
+        return this.metadataSet;
+    }
+
+    public Collection<String> getMetadataUnset() {
+        return this.metadataUnset;
+    }
+
+    private static class Chunks {
+        final List<MessagePermissions> messages = new ArrayList<>();
+        MessagePermissions current;
+        int size;
+
+        Chunks(boolean full) {
+            this.current = new MessagePermissions(full, new ArrayList<>(), new ArrayList<>(), new HashMap<>(), new ArrayList<>());
+            this.messages.add(this.current);
+        }
+
+        boolean fits(String value) {
+            return value.length() <= MAX_LENGTH;
+        }
+
+        MessagePermissions next(int size) {
+            if (this.size > 0 && this.size + size > MAX_PAYLOAD) {
+                this.current = new MessagePermissions(false, new ArrayList<>(), new ArrayList<>(), new HashMap<>(), new ArrayList<>());
+                this.messages.add(this.current);
+                this.size = 0;
+            }
+            this.size += size;
+            return this.current;
+        }
+    }
+
+    public boolean isEmpty() {
+        return !this.full && this.granted.isEmpty() && this.revoked.isEmpty()
+            && this.metadataSet.isEmpty() && this.metadataUnset.isEmpty();
+    }
+}
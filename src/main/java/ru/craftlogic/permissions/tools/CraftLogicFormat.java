@@ -0,0 +1,288 @@
+package ru.craftlogic.permissions.tools;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import ru.craftlogic.permissions.PermissionManager;
+import ru.craftlogic.permissions.tools.Migrator.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+final class CraftLogicFormat {
+    static final String NAME = "craftlogic";
+    private static final String GROUPS = "groups.json";
+    private static final String USERS = "users.json";
+
+    private CraftLogicFormat() {}
+
+    static class Reader implements Source {
+        private final Path directory;
+        private final java.util.function.Consumer<String> warnings;
+
+        Reader(Path directory, java.util.function.Consumer<String> warnings) {
+            this.directory = directory;
+            this.warnings = warnings;
+        }
+
+        @Override
+        public void readGroups(Consumer<GroupData> consumer) throws IOException {
+            this.read(this.directory.resolve(GROUPS), (name, json) -> {
+                GroupData group = new GroupData(name);
+                if (json.has("parent")) {
+                    group.parent = json.get("parent").getAsString();
+                }
+                if (json.has("priority")) {
+                    group.priority = json.get("priority").getAsInt();
+                }
+                readEntries(group, "", json);
+                if (json.has("contexts")) {
+                    for (Map.Entry<String, JsonElement> e : json.getAsJsonObject("contexts").entrySet()) {
+                        readEntries(group, e.getKey(), e.getValue().getAsJsonObject());
+                    }
+                }
+                consumer.accept(group);
+            });
+        }
+
+        @Override
+        public void readUsers(Consumer<UserData> consumer) throws IOException {
+            Path users = this.directory.resolve(USERS);
+            if (!Files.exists(users)) {
+                return;
+            }
+            this.read(users, (id, json) -> {
+                UserData user = new UserData(id);
+                readEntries(user, "", json);
+                readGroups(user, "", json);
+                if (json.has("contexts")) {
+                    for (Map.Entry<String, JsonElement> e : json.getAsJsonObject("contexts").entrySet()) {
+                        JsonObject c = e.getValue().getAsJsonObject();
+                        readEntries(user, e.getKey(), c);
+                        readGroups(user, e.getKey(), c);
+                    }
+                }
+                consumer.accept(user);
+            });
+        }
+
+        private void read(Path file, EntryConsumer consumer) throws IOException {
+            JsonParser parser = new JsonParser();
+            try (JsonReader reader = new JsonReader(Files.newBufferedReader(file, StandardCharsets.UTF_8))) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    accept(consumer, name, parser.parse(reader), this.warnings);
+                }
+                reader.endObject();
+            }
+        }
+
+        static void accept(EntryConsumer consumer, String name, JsonElement element, java.util.function.Consumer<String> warnings) throws IOException {
+            if (!element.isJsonObject()) {
+                warnings.accept("Entry '" + name + "' must be an object, skipping it");
+                return;
+            }
+            try {
+                consumer.accept(name, element.getAsJsonObject());
+            } catch (IllegalStateException | ClassCastException | UnsupportedOperationException | NumberFormatException | NullPointerException e) {
+                warnings.accept("Entry '" + name + "' is malformed (" + e + "), skipping it");
+            }
+        }
+
+        private static void readEntries(HolderData holder, String context, JsonObject json) {
+            if (json.has("permissions")) {
+                Set<String> permissions = holder.permissionsIn(context);
+                for (JsonElement element : json.getAsJsonArray("permissions")) {
+                    permissions.add(element.getAsString());
+                }
+            }
+            if (json.has("metadata")) {
+                Map<String, String> metadata = holder.metadataIn(context);
+                for (Map.Entry<String, JsonElement> e : json.getAsJsonObject("metadata").entrySet()) {
+                    metadata.put(e.getKey(), e.getValue().getAsString());
+                }
+            }
+            if (json.has("expirations")) {
+                JsonObject expirations = json.getAsJsonObject("expirations");
+                if (expirations.has("permissions")) {
+                    Map<String, Long> permissions = holder.permissionExpirationsIn(context);
+                    for (Map.Entry<String, JsonElement> e : expirations.getAsJsonObject("permissions").entrySet()) {
+                        permissions.put(e.getKey(), e.getValue().getAsLong());
+                    }
+                }
+                if (expirations.has("metadata")) {
+                    Map<String, Long> metadata = holder.metadataExpirationsIn(context);
+                    for (Map.Entry<String, JsonElement> e : expirations.getAsJsonObject("metadata").entrySet()) {
+                        metadata.put(e.getKey(), e.getValue().getAsLong());
+                    }
+                }
+            }
+        }
+
+        private static void readGroups(UserData user, String context, JsonObject json) {
+            if (json.has("groups")) {
+                Map<String, Long> groups = user.groupsIn(context);
+                if (json.get("groups").isJsonArray()) {
+                    for (JsonElement group : json.getAsJsonArray("groups")) {
+                        groups.put(group.getAsString(), 0L);
+                    }
+                } else {
+                    for (Map.Entry<String, JsonElement> e : json.getAsJsonObject("groups").entrySet()) {
+                        groups.put(e.getKey(), e.getValue().getAsLong());
+                    }
+                }
+            }
+        }
+
+        interface EntryConsumer {
+            void accept(String name, JsonObject json) throws IOException;
+        }
+    }
+
+    static class Writer implements Sink {
+        private final Path directory;
+        private JsonWriter users;
+
+        Writer(Path directory) throws IOException {
+            this.directory = directory;
+            Files.createDirectories(directory);
+        }
+
+        @Override
+        public void writeGroups(Collection<GroupData> groups) throws IOException {
+            try (JsonWriter writer = open(temporary(this.directory.resolve(GROUPS)))) {
+                writer.beginObject();
+                for (GroupData group : groups) {
+                    writer.name(group.name).beginObject();
+                    if (!(group.name.equals(PermissionManager.DEFAULT_GROUP) && group.parent.equals(PermissionManager.DEFAULT_GROUP))) {
+                        writer.name("parent").value(group.parent);
+                    }
+                    writeEntries(writer, group, "");
+                    if (group.priority != 0) {
+                        writer.name("priority").value(group.priority);
+                    }
+                    writeContexts(writer, group);
+                    writer.endObject();
+                }
+                writer.endObject();
+            }
+        }
+
+        @Override
+        public void beginUsers() throws IOException {
+            this.users = open(temporary(this.directory.resolve(USERS)));
+            this.users.beginObject();
+        }
+
+        @Override
+        public void writeUser(UserData user) throws IOException {
+            JsonWriter writer = this.users;
+            writer.name(user.id).beginObject();
+            writeEntries(writer, user, "");
+            writeLongs(writer, "groups", user.groups.get(""));
+            writeContexts(writer, user);
+            writer.endObject();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (this.users == null) {
+                this.beginUsers();
+            }
+            this.users.endObject();
+            this.users.close();
+            this.users = null;
+            commit(this.directory.resolve(GROUPS));
+            commit(this.directory.resolve(USERS));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.users != null) {
+                this.users.close();
+            }
+            Files.deleteIfExists(temporary(this.directory.resolve(GROUPS)));
+            Files.deleteIfExists(temporary(this.directory.resolve(USERS)));
+        }
+
+        private static void writeContexts(JsonWriter writer, HolderData holder) throws IOException {
+            Set<String> contexts = holder.contexts();
+            contexts.remove("");
+            if (contexts.isEmpty()) {
+                return;
+            }
+            writer.name("contexts").beginObject();
+            for (String context : contexts) {
+                writer.name(context).beginObject();
+                writeEntries(writer, holder, context);
+                if (holder instanceof UserData) {
+                    writeLongs(writer, "groups", ((UserData) holder).groups.get(context));
+                }
+                writer.endObject();
+            }
+            writer.endObject();
+        }
+
+        private static void writeEntries(JsonWriter writer, HolderData holder, String context) throws IOException {
+            Set<String> permissions = holder.permissions.get(context);
+            if (permissions != null && !permissions.isEmpty()) {
+                writer.name("permissions").beginArray();
+                for (String permission : permissions) {
+                    writer.value(permission);
+                }
+                writer.endArray();
+            }
+            Map<String, String> metadata = holder.metadata.get(context);
+            if (metadata != null && !metadata.isEmpty()) {
+                writer.name("metadata").beginObject();
+                for (Map.Entry<String, String> e : metadata.entrySet()) {
+                    writer.name(e.getKey()).value(e.getValue());
+                }
+                writer.endObject();
+            }
+            Map<String, Long> permissionExpirations = holder.permissionExpirations.get(context);
+            Map<String, Long> metadataExpirations = holder.metadataExpirations.get(context);
+            if ((permissionExpirations != null && !permissionExpirations.isEmpty()) || (metadataExpirations != null && !metadataExpirations.isEmpty())) {
+                writer.name("expirations").beginObject();
+                writeLongs(writer, "permissions", permissionExpirations);
+                writeLongs(writer, "metadata", metadataExpirations);
+                writer.endObject();
+            }
+        }
+
+        private static void writeLongs(JsonWriter writer, String name, Map<String, Long> values) throws IOException {
+            if (values != null && !values.isEmpty()) {
+                writer.name(name).beginObject();
+                for (Map.Entry<String, Long> e : values.entrySet()) {
+                    writer.name(e.getKey()).value(e.getValue());
+                }
+                writer.endObject();
+            }
+        }
+
+        private static JsonWriter open(Path file) throws IOException {
+            BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            JsonWriter writer = new JsonWriter(out);
+            writer.setIndent("  ");
+            return writer;
+        }
+
+        private static Path temporary(Path file) {
+            return file.resolveSibling(file.getFileName() + ".tmp");
+        }
+
+        private static void commit(Path file) throws IOException {
+            Files.move(temporary(file), file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package ru.craftlogic.permissions.tools;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import ru.craftlogic.permissions.Contexts;
+import ru.craftlogic.permissions.PermissionManager;
+import ru.craftlogic.permissions.tools.Migrator.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+final class LuckPermsFormat {
+    static final String NAME = "luckperms";
+    private static final String GROUP = "group.";
+    private static final String WEIGHT = "weight.";
+    private static final String META = "meta.";
+    private static final String PREFIX = "prefix";
+    private static final String SUFFIX = "suffix";
+    private static final String DISPLAY_NAME = "displayname.";
+
+    private LuckPermsFormat() {}
+
+    static class Reader implements Source {
+        private final Path file;
+        private final java.util.function.Consumer<String> warnings;
+
+        Reader(Path file, java.util.function.Consumer<String> warnings) {
+            this.file = file;
+            this.warnings = warnings;
+        }
+
+        @Override
+        public void readGroups(Consumer<GroupData> consumer) throws IOException {
+            this.read("groups", (name, json) -> {
+                GroupData group = new GroupData(name);
+                this.convert(group, "Group '" + name + "'", json.getAsJsonArray("nodes"));
+                consumer.accept(group);
+            });
+        }
+
+        @Override
+        public void readUsers(Consumer<UserData> consumer) throws IOException {
+            this.read("users", (id, json) -> {
+                UserData user = new UserData(id);
+                this.convert(user, "User '" + id + "'", json.getAsJsonArray("nodes"));
+                consumer.accept(user);
+            });
+        }
+
+        private void read(String section, CraftLogicFormat.Reader.EntryConsumer consumer) throws IOException {
+            JsonParser parser = new JsonParser();
+            try (JsonReader reader = new JsonReader(new InputStreamReader(open(this.file), StandardCharsets.UTF_8))) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!reader.nextName().equals(section)) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        CraftLogicFormat.Reader.accept(consumer, name, parser.parse(reader), this.warnings);
+                    }
+                    reader.endObject();
+                }
+                reader.endObject();
+            }
+        }
+
+        private void convert(HolderData holder, String owner, JsonArray nodes) {
+            if (nodes == null) {
+                return;
+            }
+            Map<String, Integer> weights = new HashMap<>();
+            for (JsonElement element : nodes) {
+                try {
+                    this.convert(holder, owner, element.getAsJsonObject(), weights);
+                } catch (IllegalStateException | ClassCastException | UnsupportedOperationException | NumberFormatException | NullPointerException e) {
+                    this.warnings.accept(owner + " has malformed node " + element + ", skipping it");
+                }
+            }
+        }
+
+        private void convert(HolderData holder, String owner, JsonObject node, Map<String, Integer> weights) {
+            String key = node.get("key").getAsString();
+            boolean value = !node.has("value") || node.get("value").getAsBoolean();
+            long expiry = node.has("expiry") ? node.get("expiry").getAsLong() : 0;
+            List<String> contexts = this.contexts(owner, key, node.getAsJsonObject("context"));
+            if (key.startsWith(GROUP)) {
+                String group = key.substring(GROUP.length());
+                if (!value) {
+                    this.warnings.accept(owner + " has negated membership '" + key + "', skipping it");
+                } else if (holder instanceof UserData) {
+                    for (String context : contexts) {
+                        ((UserData) holder).groupsIn(context).put(group, expiry * 1000);
+                    }
+                } else {
+                    GroupData g = (GroupData) holder;
+                    if (expiry != 0 || !contexts.equals(Collections.singletonList(Contexts.GLOBAL))) {
+                        this.warnings.accept(owner + " has temporary or contextual parent '" + group + "', skipping it");
+                    } else if (g.parent != null && !g.parent.equals(group)) {
+                        this.warnings.accept(owner + " has multiple parents, keeping '" + g.parent + "' and skipping '" + group + "'");
+                    } else {
+                        g.parent = group;
+                    }
+                }
+            } else if (key.startsWith(WEIGHT)) {
+                if (holder instanceof GroupData) {
+                    ((GroupData) holder).priority = Integer.parseInt(key.substring(WEIGHT.length()));
+                }
+            } else if (key.startsWith(META)) {
+                String[] entry = split(key.substring(META.length()));
+                if (entry != null) {
+                    for (String context : contexts) {
+                        putMetadata(holder, context, entry[0], entry[1], expiry);
+                    }
+                }
+            } else if (key.startsWith(PREFIX + ".") || key.startsWith(SUFFIX + ".")) {
+                String type = key.substring(0, key.indexOf('.'));
+                String[] entry = split(key.substring(type.length() + 1));
+                if (entry != null) {
+                    int weight = Integer.parseInt(entry[0]);
+                    for (String context : contexts) {
+                        Integer previous = weights.get(type + ';' + context);
+                        if (previous == null || previous < weight) {
+                            weights.put(type + ';' + context, weight);
+                            putMetadata(holder, context, type, entry[1], expiry);
+                        }
+                    }
+                }
+            } else if (key.startsWith(DISPLAY_NAME)) {
+                for (String context : contexts) {
+                    putMetadata(holder, context, "displayname", key.substring(DISPLAY_NAME.length()), expiry);
+                }
+            } else {
+                String permission = value ? key : "-" + key;
+                for (String context : contexts) {
+                    holder.permissionsIn(context).add(permission);
+                    if (expiry != 0) {
+                        holder.permissionExpirationsIn(context).put(permission, expiry * 1000);
+                    }
+                }
+            }
+        }
+
+        private static void putMetadata(HolderData holder, String context, String key, String value, long expiry) {
+            holder.metadataIn(context).put(key, value);
+            if (expiry != 0) {
+                holder.metadataExpirationsIn(context).put(key, expiry * 1000);
+            } else {
+                holder.metadataExpirationsIn(context).remove(key);
+            }
+        }
+
+        private List<String> contexts(String owner, String key, JsonObject context) {
+            List<String> contexts = new ArrayList<>();
+            contexts.add(Contexts.GLOBAL);
+            if (context == null) {
+                return contexts;
+            }
+            for (Map.Entry<String, JsonElement> e : context.entrySet()) {
+                List<String> values = new ArrayList<>();
+                if (e.getValue().isJsonArray()) {
+                    for (JsonElement v : e.getValue().getAsJsonArray()) {
+                        values.add(v.getAsString());
+                    }
+                } else {
+                    values.add(e.getValue().getAsString());
+                }
+                List<String> expanded = new ArrayList<>();
+                for (String value : values) {
+                    String pair = Contexts.pair(e.getKey(), value);
+                    if (!Contexts.isValid(pair) || pair.indexOf(';') >= 0 || pair.indexOf('=') != e.getKey().length()) {
+                        this.warnings.accept(owner + " has unsupported context '" + pair + "' on '" + key + "', skipping it");
+                        continue;
+                    }
+                    for (String c : contexts) {
+                        expanded.add(c.isEmpty() ? pair : c + ";" + pair);
+                    }
+                }
+                contexts = expanded;
+            }
+            return contexts;
+        }
+
+        private static String[] split(String entry) {
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < entry.length(); i++) {
+                char c = entry.charAt(i);
+                if (c == '\\' && i + 1 < entry.length()) {
+                    key.append(entry.charAt(++i));
+                } else if (c == '.') {
+                    return new String[] {key.toString(), unescape(entry.substring(i + 1))};
+                } else {
+                    key.append(c);
+                }
+            }
+            return null;
+        }
+
+        private static String unescape(String value) {
+            StringBuilder result = new StringBuilder(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' && i + 1 < value.length()) {
+                    c = value.charAt(++i);
+                }
+                result.append(c);
+            }
+            return result.toString();
+        }
+
+        private static InputStream open(Path file) throws IOException {
+            InputStream in = new BufferedInputStream(Files.newInputStream(file));
+            return file.getFileName().toString().endsWith(".gz") ? new GZIPInputStream(in) : in;
+        }
+    }
+
+    static class Writer implements Sink {
+        private final Path file, temporary;
+        private final JsonWriter writer;
+
+        Writer(Path file) throws IOException {
+            this.file = file;
+            this.temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            OutputStream out = new BufferedOutputStream(Files.newOutputStream(this.temporary));
+            if (file.getFileName().toString().endsWith(".gz")) {
+                out = new GZIPOutputStream(out);
+            }
+            this.writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            this.writer.beginObject();
+            this.writer.name("metadata").beginObject()
+                .name("generatedBy").value("craftlogic-permissions")
+                .name("generatedAt").value(Instant.now().toString())
+                .endObject();
+        }
+
+        @Override
+        public void writeGroups(Collection<GroupData> groups) throws IOException {
+            JsonWriter writer = this.writer;
+            writer.name("groups").beginObject();
+            for (GroupData group : groups) {
+                writer.name(group.name).beginObject().name("nodes").beginArray();
+                if (!group.parent.equals(group.name)) {
+                    writeNode(writer, GROUP + group.parent, true, Contexts.GLOBAL, 0);
+                }
+                if (group.priority != 0) {
+                    writeNode(writer, WEIGHT + group.priority, true, Contexts.GLOBAL, 0);
+                }
+                writeEntries(writer, group, group.priority);
+                writer.endArray().endObject();
+            }
+            writer.endObject();
+            writer.name("tracks").beginObject().endObject();
+        }
+
+        @Override
+        public void beginUsers() throws IOException {
+            this.writer.name("users").beginObject();
+        }
+
+        @Override
+        public void writeUser(UserData user) throws IOException {
+            JsonWriter writer = this.writer;
+            writer.name(user.id).beginObject();
+            writer.name("primaryGroup").value(PermissionManager.DEFAULT_GROUP);
+            writer.name("nodes").beginArray();
+            writeNode(writer, GROUP + PermissionManager.DEFAULT_GROUP, true, Contexts.GLOBAL, 0);
+            for (Map.Entry<String, Map<String, Long>> c : user.groups.entrySet()) {
+                for (Map.Entry<String, Long> e : c.getValue().entrySet()) {
+                    writeNode(writer, GROUP + e.getKey(), true, c.getKey(), seconds(e.getValue()));
+                }
+            }
+            writeEntries(writer, user, 0);
+            writer.endArray().endObject();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            this.writer.endObject();
+            this.writer.endObject();
+            this.writer.close();
+            Files.move(this.temporary, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.writer.close();
+            Files.deleteIfExists(this.temporary);
+        }
+
+        private static void writeEntries(JsonWriter writer, HolderData holder, int weight) throws IOException {
+            for (Map.Entry<String, Set<String>> c : holder.permissions.entrySet()) {
+                Map<String, Long> expirations = holder.permissionExpirations.getOrDefault(c.getKey(), Collections.emptyMap());
+                for (String permission : c.getValue()) {
+                    boolean negated = permission.startsWith("-");
+                    writeNode(writer, negated ? permission.substring(1) : permission, !negated, c.getKey(), seconds(expirations.getOrDefault(permission, 0L)));
+                }
+            }
+            for (Map.Entry<String, Map<String, String>> c : holder.metadata.entrySet()) {
+                Map<String, Long> expirations = holder.metadataExpirations.getOrDefault(c.getKey(), Collections.emptyMap());
+                for (Map.Entry<String, String> e : c.getValue().entrySet()) {
+                    String key = e.getKey();
+                    String node = key.equals(PREFIX) || key.equals(SUFFIX)
+                        ? key + "." + weight + "." + escape(e.getValue())
+                        : META + escape(key) + "." + escape(e.getValue());
+                    writeNode(writer, node, true, c.getKey(), seconds(expirations.getOrDefault(key, 0L)));
+                }
+            }
+        }
+
+        private static long seconds(long expiration) {
+            return expiration != 0 ? (expiration + 999) / 1000 : 0;
+        }
+
+        private static void writeNode(JsonWriter writer, String key, boolean value, String context, long expiry) throws IOException {
+            writer.beginObject().name("key").value(key).name("value").value(value);
+            if (expiry != 0) {
+                writer.name("expiry").value(expiry);
+            }
+            if (!context.isEmpty()) {
+                writer.name("context").beginObject();
+                for (String pair : context.split(";")) {
+                    int eq = pair.indexOf('=');
+                    writer.name(pair.substring(0, eq)).value(pair.substring(eq + 1));
+                }
+                writer.endObject();
+            }
+            writer.endObject();
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace(".", "\\.");
+        }
+    }
+}
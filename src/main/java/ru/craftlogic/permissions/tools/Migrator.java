@@ -0,0 +1,374 @@
+package ru.craftlogic.permissions.tools;
+
+import ru.craftlogic.permissions.Contexts;
+import ru.craftlogic.permissions.PermissionManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+public class Migrator {
+    private static final int MAX_WARNINGS = 1000;
+
+    private final Map<String, GroupData> groups = new LinkedHashMap<>();
+    private final boolean dropExpired;
+    private final long now = System.currentTimeMillis();
+    private long users, skippedUsers, droppedMemberships, droppedEntries, warnings;
+
+    Migrator(boolean dropExpired) {
+        this.dropExpired = dropExpired;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        boolean strict = false, keepExpired = false;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--strict")) {
+                strict = true;
+            } else if (arg.equals("--keep-expired")) {
+                keepExpired = true;
+            } else if (arg.startsWith("--") && i + 1 < args.length) {
+                options.put(arg.substring(2), args[++i]);
+            } else {
+                usage();
+            }
+        }
+        if (!options.containsKey("from") || !options.containsKey("input") || !options.containsKey("output")) {
+            usage();
+        }
+        Path input = Paths.get(options.get("input"));
+        Path output = Paths.get(options.get("output"));
+        if (input.toAbsolutePath().normalize().equals(output.toAbsolutePath().normalize())) {
+            System.err.println("Input and output must differ");
+            System.exit(2);
+        }
+        Migrator migrator = new Migrator(!keepExpired);
+        Source source = source(options.get("from"), input, migrator);
+        try (Sink sink = sink(options.getOrDefault("to", CraftLogicFormat.NAME), output)) {
+            migrator.migrate(source, sink);
+        }
+        System.out.printf("Migrated %d groups and %d users (%d users skipped, %d memberships and %d entries dropped, %d warnings)%n",
+            migrator.groups.size(), migrator.users, migrator.skippedUsers, migrator.droppedMemberships, migrator.droppedEntries, migrator.warnings);
+        System.exit(strict && migrator.warnings > 0 ? 1 : 0);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: Migrator --from craftlogic|luckperms --input <path> [--to craftlogic|luckperms] --output <path> [--strict] [--keep-expired]");
+        System.err.println("  craftlogic: directory containing groups.json and users.json");
+        System.err.println("  luckperms:  LuckPerms JSON export (.json or .json.gz)");
+        System.exit(2);
+    }
+
+    private static Source source(String format, Path path, Migrator migrator) {
+        switch (format) {
+            case CraftLogicFormat.NAME:
+                return new CraftLogicFormat.Reader(path, migrator::warn);
+            case LuckPermsFormat.NAME:
+                return new LuckPermsFormat.Reader(path, migrator::warn);
+            default:
+                System.err.println("Unsupported input format '" + format + "'");
+                System.exit(2);
+                return null;
+        }
+    }
+
+    private static Sink sink(String format, Path path) throws IOException {
+        switch (format) {
+            case CraftLogicFormat.NAME:
+                return new CraftLogicFormat.Writer(path);
+            case LuckPermsFormat.NAME:
+                return new LuckPermsFormat.Writer(path);
+            default:
+                System.err.println("Unsupported output format '" + format + "'");
+                System.exit(2);
+                return null;
+        }
+    }
+
+    void migrate(Source source, Sink sink) throws IOException {
+        source.readGroups(group -> {
+            if (this.groups.put(group.name, group) != null) {
+                this.warn("Duplicate group '" + group.name + "', keeping the last definition");
+            }
+            this.validateEntries("Group '" + group.name + "'", group);
+        });
+        this.validateGroups();
+        sink.writeGroups(this.groups.values());
+        sink.beginUsers();
+        source.readUsers(user -> {
+            if (this.validateUser(user)) {
+                this.users++;
+                sink.writeUser(user);
+            } else {
+                this.skippedUsers++;
+            }
+        });
+        sink.finish();
+    }
+
+    private void validateGroups() {
+        if (!this.groups.containsKey(PermissionManager.DEFAULT_GROUP)) {
+            this.warn("Default group is missing, creating an empty one");
+            GroupData group = new GroupData(PermissionManager.DEFAULT_GROUP);
+            group.parent = PermissionManager.DEFAULT_GROUP;
+            this.groups.put(group.name, group);
+        }
+        for (GroupData group : this.groups.values()) {
+            if (group.parent == null) {
+                group.parent = PermissionManager.DEFAULT_GROUP;
+            } else if (!this.groups.containsKey(group.parent)) {
+                this.warn("Group '" + group.name + "' has undefined parent '" + group.parent + "', using default");
+                group.parent = PermissionManager.DEFAULT_GROUP;
+            }
+        }
+        this.groups.get(PermissionManager.DEFAULT_GROUP).parent = PermissionManager.DEFAULT_GROUP;
+        for (GroupData group : this.groups.values()) {
+            Set<String> visited = new HashSet<>();
+            GroupData current = group;
+            while (!current.parent.equals(current.name)) {
+                if (!visited.add(current.name)) {
+                    this.warn("Group '" + current.name + "' is part of an inheritance cycle, re-parenting it to default");
+                    current.parent = PermissionManager.DEFAULT_GROUP;
+                    break;
+                }
+                current = this.groups.get(current.parent);
+            }
+        }
+    }
+
+    private boolean validateUser(UserData user) {
+        try {
+            if (!UUID.fromString(user.id).toString().equalsIgnoreCase(user.id)) {
+                throw new IllegalArgumentException();
+            }
+        } catch (IllegalArgumentException e) {
+            this.warn("Invalid user UUID '" + user.id + "', skipping it");
+            return false;
+        }
+        String owner = "User '" + user.id + "'";
+        this.validateEntries(owner, user);
+        for (Iterator<Map.Entry<String, Map<String, Long>>> contexts = user.groups.entrySet().iterator(); contexts.hasNext(); ) {
+            Map.Entry<String, Map<String, Long>> c = contexts.next();
+            for (Iterator<Map.Entry<String, Long>> iterator = c.getValue().entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<String, Long> e = iterator.next();
+                long expiration = e.getValue();
+                if (!this.groups.containsKey(e.getKey())) {
+                    this.warn(owner + " is a member of unknown group '" + e.getKey() + "', dropping it");
+                    iterator.remove();
+                    this.droppedMemberships++;
+                } else if (this.dropExpired && expiration != 0 && expiration < this.now) {
+                    iterator.remove();
+                    this.droppedMemberships++;
+                } else if (e.getKey().equals(PermissionManager.DEFAULT_GROUP) && expiration == 0) {
+                    iterator.remove();
+                }
+            }
+            if (c.getValue().isEmpty()) {
+                contexts.remove();
+            }
+        }
+        return !user.isEmpty();
+    }
+
+    private void validateEntries(String owner, HolderData holder) {
+        if (this.dropExpired) {
+            this.droppedEntries += holder.dropExpired(this.now);
+        }
+        for (String context : new ArrayList<>(holder.contexts())) {
+            if (context.isEmpty()) {
+                continue;
+            }
+            if (!Contexts.isValid(context)) {
+                this.warn(owner + " has malformed context '" + context + "', dropping it");
+                this.droppedEntries += holder.removeContext(context);
+            } else {
+                String normalized = Contexts.normalize(context);
+                if (!normalized.equals(context)) {
+                    holder.renameContext(context, normalized);
+                }
+            }
+        }
+    }
+
+    void warn(String message) {
+        if (this.warnings++ < MAX_WARNINGS) {
+            System.err.println(message);
+        } else if (this.warnings == MAX_WARNINGS + 1) {
+            System.err.println("Too many warnings, further ones are only counted");
+        }
+    }
+
+    interface Source {
+        void readGroups(Consumer<GroupData> consumer) throws IOException;
+
+        void readUsers(Consumer<UserData> consumer) throws IOException;
+    }
+
+    interface Sink extends Closeable {
+        void writeGroups(Collection<GroupData> groups) throws IOException;
+
+        void beginUsers() throws IOException;
+
+        void writeUser(UserData user) throws IOException;
+
+        void finish() throws IOException;
+    }
+
+    interface Consumer<T> {
+        void accept(T value) throws IOException;
+    }
+
+    static abstract class HolderData {
+        final Map<String, Set<String>> permissions = new LinkedHashMap<>();
+        final Map<String, Map<String, String>> metadata = new LinkedHashMap<>();
+        final Map<String, Map<String, Long>> permissionExpirations = new LinkedHashMap<>();
+        final Map<String, Map<String, Long>> metadataExpirations = new LinkedHashMap<>();
+
+        Set<String> permissionsIn(String context) {
+            return this.permissions.computeIfAbsent(context, k -> new LinkedHashSet<>());
+        }
+
+        Map<String, String> metadataIn(String context) {
+            return this.metadata.computeIfAbsent(context, k -> new LinkedHashMap<>());
+        }
+
+        Map<String, Long> permissionExpirationsIn(String context) {
+            return this.permissionExpirations.computeIfAbsent(context, k -> new LinkedHashMap<>());
+        }
+
+        Map<String, Long> metadataExpirationsIn(String context) {
+            return this.metadataExpirations.computeIfAbsent(context, k -> new LinkedHashMap<>());
+        }
+
+        Set<String> contexts() {
+            Set<String> contexts = new LinkedHashSet<>(this.permissions.keySet());
+            contexts.addAll(this.metadata.keySet());
+            return contexts;
+        }
+
+        int removeContext(String context) {
+            int removed = 0;
+            this.permissionExpirations.remove(context);
+            this.metadataExpirations.remove(context);
+            Set<String> permissions = this.permissions.remove(context);
+            if (permissions != null) {
+                removed += permissions.size();
+            }
+            Map<String, String> metadata = this.metadata.remove(context);
+            if (metadata != null) {
+                removed += metadata.size();
+            }
+            return removed;
+        }
+
+        void renameContext(String from, String to) {
+            Set<String> permissions = this.permissions.remove(from);
+            if (permissions != null) {
+                this.permissionsIn(to).addAll(permissions);
+            }
+            Map<String, String> metadata = this.metadata.remove(from);
+            if (metadata != null) {
+                this.metadataIn(to).putAll(metadata);
+            }
+            Map<String, Long> permissionExpirations = this.permissionExpirations.remove(from);
+            if (permissionExpirations != null) {
+                this.permissionExpirationsIn(to).putAll(permissionExpirations);
+            }
+            Map<String, Long> metadataExpirations = this.metadataExpirations.remove(from);
+            if (metadataExpirations != null) {
+                this.metadataExpirationsIn(to).putAll(metadataExpirations);
+            }
+        }
+
+        int dropExpired(long now) {
+            int dropped = 0;
+            for (Map.Entry<String, Map<String, Long>> c : this.permissionExpirations.entrySet()) {
+                for (Iterator<Map.Entry<String, Long>> iterator = c.getValue().entrySet().iterator(); iterator.hasNext(); ) {
+                    Map.Entry<String, Long> e = iterator.next();
+                    if (e.getValue() < now) {
+                        iterator.remove();
+                        Set<String> permissions = this.permissions.get(c.getKey());
+                        if (permissions != null && permissions.remove(e.getKey())) {
+                            dropped++;
+                        }
+                    }
+                }
+            }
+            for (Map.Entry<String, Map<String, Long>> c : this.metadataExpirations.entrySet()) {
+                for (Iterator<Map.Entry<String, Long>> iterator = c.getValue().entrySet().iterator(); iterator.hasNext(); ) {
+                    Map.Entry<String, Long> e = iterator.next();
+                    if (e.getValue() < now) {
+                        iterator.remove();
+                        Map<String, String> metadata = this.metadata.get(c.getKey());
+                        if (metadata != null && metadata.remove(e.getKey()) != null) {
+                            dropped++;
+                        }
+                    }
+                }
+            }
+            return dropped;
+        }
+    }
+
+    static class GroupData extends HolderData {
+        final String name;
+        String parent;
+        int priority;
+
+        GroupData(String name) {
+            this.name = name;
+        }
+    }
+
+    static class UserData extends HolderData {
+        final String id;
+        final Map<String, Map<String, Long>> groups = new LinkedHashMap<>();
+
+        UserData(String id) {
+            this.id = id;
+        }
+
+        Map<String, Long> groupsIn(String context) {
+            return this.groups.computeIfAbsent(context, k -> new LinkedHashMap<>());
+        }
+
+        @Override
+        Set<String> contexts() {
+            Set<String> contexts = super.contexts();
+            contexts.addAll(this.groups.keySet());
+            return contexts;
+        }
+
+        @Override
+        int removeContext(String context) {
+            Map<String, Long> groups = this.groups.remove(context);
+            return super.removeContext(context) + (groups != null ? groups.size() : 0);
+        }
+
+        @Override
+        void renameContext(String from, String to) {
+            super.renameContext(from, to);
+            Map<String, Long> groups = this.groups.remove(from);
+            if (groups != null) {
+                this.groupsIn(to).putAll(groups);
+            }
+        }
+
+        boolean isEmpty() {
+            for (Set<String> permissions : this.permissions.values()) {
+                if (!permissions.isEmpty()) {
+                    return false;
+                }
+            }
+            for (Map<String, String> metadata : this.metadata.values()) {
+                if (!metadata.isEmpty()) {
+                    return false;
+                }
+            }
+            return this.groups.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package ru.craftlogic.permissions.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class BloomFilter {
+    private static final int HASHES = 4;
+    private static final int BITS_PER_ENTRY = 10;
+
+    private final AtomicLongArray words;
+    private final int mask;
+    private final int capacity;
+    private int count;
+
+    public BloomFilter(int capacity) {
+        int bits = Integer.highestOneBit(Math.max(64, capacity * BITS_PER_ENTRY) - 1) << 1;
+        this.words = new AtomicLongArray(bits >>> 6);
+        this.mask = bits - 1;
+        this.capacity = bits / BITS_PER_ENTRY;
+    }
+
+    public void put(String value) {
+        int h1 = value.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & this.mask;
+            long flag = 1L << bit;
+            long word;
+            while (((word = this.words.get(bit >>> 6)) & flag) == 0 && !this.words.compareAndSet(bit >>> 6, word, word | flag));
+        }
+        this.count++;
+    }
+
+    public boolean mightContain(String value) {
+        int h1 = value.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & this.mask;
+            if ((this.words.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isFull() {
+        return this.count > this.capacity;
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+}
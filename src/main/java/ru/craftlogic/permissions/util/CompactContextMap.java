@@ -0,0 +1,172 @@
+package ru.craftlogic.permissions.util;
+
+import java.util.*;
+import java.util.function.Function;
+
+public class CompactContextMap<V> extends AbstractMap<String, V> {
+    private static final Object[] EMPTY = new Object[0];
+
+    private volatile Object[] entries;
+
+    public CompactContextMap() {
+        this.entries = EMPTY;
+    }
+
+    private static int find(Object[] entries, Object key) {
+        int low = 0, high = entries.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = ((String) entries[mid * 2]).compareTo((String) key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && find(this.entries, key) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        Object[] entries = this.entries;
+        int index = find(entries, key);
+        return index >= 0 ? (V) entries[index * 2 + 1] : null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized V put(String key, V value) {
+        Object[] entries = this.entries;
+        int index = find(entries, key);
+        if (index >= 0) {
+            Object previous = entries[index * 2 + 1];
+            Object[] result = entries.clone();
+            result[index * 2 + 1] = value;
+            this.entries = result;
+            return (V) previous;
+        }
+        index = -index - 1;
+        Object[] result = new Object[entries.length + 2];
+        System.arraycopy(entries, 0, result, 0, index * 2);
+        result[index * 2] = StringPool.intern(key);
+        result[index * 2 + 1] = value;
+        System.arraycopy(entries, index * 2, result, index * 2 + 2, entries.length - index * 2);
+        this.entries = result;
+        return null;
+    }
+
+    @Override
+    public synchronized V computeIfAbsent(String key, Function<? super String, ? extends V> mapping) {
+        V value = this.get(key);
+        if (value == null) {
+            value = mapping.apply(key);
+            if (value != null) {
+                this.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(Object key) {
+        Object[] entries = this.entries;
+        int index = key instanceof String ? find(entries, key) : -1;
+        if (index < 0) {
+            return null;
+        }
+        Object previous = entries[index * 2 + 1];
+        if (entries.length == 2) {
+            this.entries = EMPTY;
+        } else {
+            Object[] result = new Object[entries.length - 2];
+            System.arraycopy(entries, 0, result, 0, index * 2);
+            System.arraycopy(entries, index * 2 + 2, result, index * 2, entries.length - index * 2 - 2);
+            this.entries = result;
+        }
+        return (V) previous;
+    }
+
+    @Override
+    public synchronized boolean remove(Object key, Object value) {
+        if (value == null || !value.equals(this.get(key))) {
+            return false;
+        }
+        this.remove(key);
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        this.entries = EMPTY;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.entries.length == 0;
+    }
+
+    @Override
+    public int size() {
+        return this.entries.length / 2;
+    }
+
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+        return new AbstractSet<Entry<String, V>>() {
+            @Override
+            public Iterator<Entry<String, V>> iterator() {
+                Object[] entries = CompactContextMap.this.entries;
+                return new Iterator<Entry<String, V>>() {
+                    int index;
+
+                    @Override
+                    public boolean hasNext() {
+                        return this.index < entries.length;
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Entry<String, V> next() {
+                        if (this.index >= entries.length) {
+                            throw new NoSuchElementException();
+                        }
+                        String key = (String) entries[this.index];
+                        V value = (V) entries[this.index + 1];
+                        this.index += 2;
+                        return new SimpleImmutableEntry<>(key, value);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (this.index == 0) {
+                            throw new IllegalStateException();
+                        }
+                        CompactContextMap.this.remove(entries[this.index - 2], entries[this.index - 1]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CompactContextMap.this.size();
+            }
+        };
+    }
+
+    public long footprint() {
+        Object[] entries = this.entries;
+        return Footprint.OBJECT + (entries == EMPTY ? 0 : Footprint.array(entries.length));
+    }
+}
@@ -0,0 +1,244 @@
+package ru.craftlogic.permissions.util;
+
+import java.util.*;
+
+public class CompactLongMap<K> extends AbstractMap<K, Long> {
+    private static final Table EMPTY = new Table(new Object[0], new long[0]);
+
+    private volatile Table table;
+
+    public CompactLongMap() {
+        this.table = EMPTY;
+    }
+
+    public CompactLongMap(Map<? extends K, Long> values) {
+        this.table = build(values.entrySet());
+    }
+
+    private CompactLongMap(Table table) {
+        this.table = table;
+    }
+
+    private static Table build(Collection<? extends Map.Entry<?, Long>> entries) {
+        if (entries.isEmpty()) {
+            return EMPTY;
+        }
+        List<Map.Entry<?, Long>> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparingInt(e -> e.getKey().hashCode()));
+        Object[] keys = new Object[sorted.size()];
+        long[] values = new long[sorted.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = sorted.get(i).getKey();
+            values[i] = sorted.get(i).getValue();
+        }
+        return new Table(keys, values);
+    }
+
+    private static int find(Table table, Object key) {
+        if (key == null) {
+            return -1;
+        }
+        Object[] keys = table.keys;
+        int hash = key.hashCode();
+        int index = search(keys, hash);
+        if (index < 0) {
+            return index;
+        }
+        for (int i = index; i >= 0 && keys[i].hashCode() == hash; i--) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        for (int i = index + 1; i < keys.length && keys[i].hashCode() == hash; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -(index + 1) - 1;
+    }
+
+    private static int search(Object[] keys, int hash) {
+        int low = 0, high = keys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int h = keys[mid].hashCode();
+            if (h < hash) {
+                low = mid + 1;
+            } else if (h > hash) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(this.table, key) >= 0;
+    }
+
+    @Override
+    public Long get(Object key) {
+        Table table = this.table;
+        int index = find(table, key);
+        return index >= 0 ? table.values[index] : null;
+    }
+
+    public long getLong(Object key, long defaultValue) {
+        Table table = this.table;
+        int index = find(table, key);
+        return index >= 0 ? table.values[index] : defaultValue;
+    }
+
+    @Override
+    public synchronized Long put(K key, Long value) {
+        Table table = this.table;
+        int index = find(table, key);
+        if (index >= 0) {
+            long previous = table.values[index];
+            long[] values = table.values.clone();
+            values[index] = value;
+            this.table = new Table(table.keys, values);
+            return previous;
+        }
+        int size = table.keys.length;
+        int at = -(index + 1);
+        Object[] keys = new Object[size + 1];
+        long[] values = new long[size + 1];
+        System.arraycopy(table.keys, 0, keys, 0, at);
+        System.arraycopy(table.keys, at, keys, at + 1, size - at);
+        System.arraycopy(table.values, 0, values, 0, at);
+        System.arraycopy(table.values, at, values, at + 1, size - at);
+        keys[at] = key;
+        values[at] = value;
+        this.table = new Table(keys, values);
+        return null;
+    }
+
+    @Override
+    public synchronized void putAll(Map<? extends K, ? extends Long> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        Map<Object, Long> merged = new HashMap<>(this);
+        merged.putAll(values);
+        this.table = build(merged.entrySet());
+    }
+
+    @Override
+    public synchronized Long remove(Object key) {
+        Table table = this.table;
+        int index = find(table, key);
+        if (index < 0) {
+            return null;
+        }
+        long previous = table.values[index];
+        int size = table.keys.length;
+        if (size == 1) {
+            this.table = EMPTY;
+        } else {
+            Object[] keys = new Object[size - 1];
+            long[] values = new long[size - 1];
+            System.arraycopy(table.keys, 0, keys, 0, index);
+            System.arraycopy(table.keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(table.values, 0, values, 0, index);
+            System.arraycopy(table.values, index + 1, values, index, size - index - 1);
+            this.table = new Table(keys, values);
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized boolean remove(Object key, Object value) {
+        Table table = this.table;
+        int index = find(table, key);
+        if (index < 0 || !(value instanceof Long) || table.values[index] != (Long) value) {
+            return false;
+        }
+        this.remove(key);
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        this.table = EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return this.table.keys.length;
+    }
+
+    @Override
+    public Set<Entry<K, Long>> entrySet() {
+        return new AbstractSet<Entry<K, Long>>() {
+            @Override
+            public Iterator<Entry<K, Long>> iterator() {
+                Table table = CompactLongMap.this.table;
+                return new Iterator<Entry<K, Long>>() {
+                    int index;
+
+                    @Override
+                    public boolean hasNext() {
+                        return this.index < table.keys.length;
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Entry<K, Long> next() {
+                        if (this.index >= table.keys.length) {
+                            throw new NoSuchElementException();
+                        }
+                        int i = this.index++;
+                        return new SimpleImmutableEntry<>((K) table.keys[i], table.values[i]);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (this.index == 0) {
+                            throw new IllegalStateException();
+                        }
+                        CompactLongMap.this.remove(table.keys[this.index - 1], table.values[this.index - 1]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CompactLongMap.this.size();
+            }
+        };
+    }
+
+    public CompactLongMap<K> copy() {
+        return new CompactLongMap<>(this.table);
+    }
+
+    public synchronized void restore(CompactLongMap<K> snapshot) {
+        this.table = snapshot.table;
+    }
+
+    public boolean shares(CompactLongMap<K> other) {
+        return this.table == other.table;
+    }
+
+    public long footprint() {
+        Table table = this.table;
+        long footprint = Footprint.OBJECT;
+        if (table != EMPTY) {
+            footprint += Footprint.OBJECT + Footprint.array(table.keys.length) + Footprint.longArray(table.values.length);
+        }
+        return footprint;
+    }
+
+    private static class Table {
+        final Object[] keys;
+        final long[] values;
+
+        Table(Object[] keys, long[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package ru.craftlogic.permissions.util;
+
+import java.util.*;
+
+public class CompactStringMap extends AbstractMap<String, String> {
+    private static final String[] EMPTY = new String[0];
+
+    private volatile String[] entries;
+
+    public CompactStringMap() {
+        this.entries = EMPTY;
+    }
+
+    public CompactStringMap(Map<String, String> values) {
+        this.entries = EMPTY;
+        if (!values.isEmpty()) {
+            TreeMap<String, String> sorted = new TreeMap<>(values);
+            String[] entries = new String[sorted.size() * 2];
+            int i = 0;
+            for (Map.Entry<String, String> e : sorted.entrySet()) {
+                entries[i++] = StringPool.intern(e.getKey());
+                entries[i++] = StringPool.intern(e.getValue());
+            }
+            this.entries = entries;
+        }
+    }
+
+    private CompactStringMap(String[] entries) {
+        this.entries = entries;
+    }
+
+    private static int find(String[] entries, Object key) {
+        int low = 0, high = entries.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = entries[mid * 2].compareTo((String) key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && find(this.entries, key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String[] entries = this.entries;
+        int index = find(entries, key);
+        return index >= 0 ? entries[index * 2 + 1] : null;
+    }
+
+    @Override
+    public synchronized String put(String key, String value) {
+        String[] entries = this.entries;
+        int index = find(entries, key);
+        value = StringPool.intern(value);
+        if (index >= 0) {
+            String previous = entries[index * 2 + 1];
+            String[] result = entries.clone();
+            result[index * 2 + 1] = value;
+            this.entries = result;
+            return previous;
+        }
+        index = -index - 1;
+        String[] result = new String[entries.length + 2];
+        System.arraycopy(entries, 0, result, 0, index * 2);
+        result[index * 2] = StringPool.intern(key);
+        result[index * 2 + 1] = value;
+        System.arraycopy(entries, index * 2, result, index * 2 + 2, entries.length - index * 2);
+        this.entries = result;
+        return null;
+    }
+
+    @Override
+    public synchronized String remove(Object key) {
+        String[] entries = this.entries;
+        int index = key instanceof String ? find(entries, key) : -1;
+        if (index < 0) {
+            return null;
+        }
+        String previous = entries[index * 2 + 1];
+        if (entries.length == 2) {
+            this.entries = EMPTY;
+        } else {
+            String[] result = new String[entries.length - 2];
+            System.arraycopy(entries, 0, result, 0, index * 2);
+            System.arraycopy(entries, index * 2 + 2, result, index * 2, entries.length - index * 2 - 2);
+            this.entries = result;
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized boolean remove(Object key, Object value) {
+        if (value == null || !value.equals(this.get(key))) {
+            return false;
+        }
+        this.remove(key);
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        this.entries = EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return this.entries.length / 2;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                String[] entries = CompactStringMap.this.entries;
+                return new Iterator<Entry<String, String>>() {
+                    int index;
+
+                    @Override
+                    public boolean hasNext() {
+                        return this.index < entries.length;
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        if (this.index >= entries.length) {
+                            throw new NoSuchElementException();
+                        }
+                        String key = entries[this.index];
+                        String value = entries[this.index + 1];
+                        this.index += 2;
+                        return new SimpleImmutableEntry<>(key, value);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (this.index == 0) {
+                            throw new IllegalStateException();
+                        }
+                        CompactStringMap.this.remove(entries[this.index - 2], entries[this.index - 1]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CompactStringMap.this.size();
+            }
+        };
+    }
+
+    public CompactStringMap copy() {
+        return new CompactStringMap(this.entries);
+    }
+
+    public synchronized void restore(CompactStringMap snapshot) {
+        this.entries = snapshot.entries;
+    }
+
+    public boolean shares(CompactStringMap other) {
+        return this.entries == other.entries;
+    }
+
+    public long footprint() {
+        return Footprint.OBJECT + Footprint.array(this.entries.length);
+    }
+}
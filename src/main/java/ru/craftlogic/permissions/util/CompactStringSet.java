@@ -0,0 +1,123 @@
+package ru.craftlogic.permissions.util;
+
+import java.util.*;
+
+public class CompactStringSet extends AbstractSet<String> {
+    private static final String[] EMPTY = new String[0];
+
+    private volatile String[] values;
+
+    public CompactStringSet() {
+        this.values = EMPTY;
+    }
+
+    public CompactStringSet(Collection<String> values) {
+        this.values = values.isEmpty() ? EMPTY : sorted(values);
+    }
+
+    private CompactStringSet(String[] values) {
+        this.values = values;
+    }
+
+    private static String[] sorted(Collection<String> values) {
+        TreeSet<String> unique = new TreeSet<>();
+        for (String value : values) {
+            unique.add(StringPool.intern(value));
+        }
+        return unique.toArray(new String[0]);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof String && Arrays.binarySearch(this.values, o) >= 0;
+    }
+
+    @Override
+    public synchronized boolean add(String value) {
+        String[] values = this.values;
+        int index = Arrays.binarySearch(values, value);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        String[] result = new String[values.length + 1];
+        System.arraycopy(values, 0, result, 0, index);
+        result[index] = StringPool.intern(value);
+        System.arraycopy(values, index, result, index + 1, values.length - index);
+        this.values = result;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean remove(Object o) {
+        String[] values = this.values;
+        int index = o instanceof String ? Arrays.binarySearch(values, o) : -1;
+        if (index < 0) {
+            return false;
+        }
+        if (values.length == 1) {
+            this.values = EMPTY;
+        } else {
+            String[] result = new String[values.length - 1];
+            System.arraycopy(values, 0, result, 0, index);
+            System.arraycopy(values, index + 1, result, index, values.length - index - 1);
+            this.values = result;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        this.values = EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return this.values.length;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        String[] values = this.values;
+        return new Iterator<String>() {
+            int index;
+
+            @Override
+            public boolean hasNext() {
+                return this.index < values.length;
+            }
+
+            @Override
+            public String next() {
+                if (this.index >= values.length) {
+                    throw new NoSuchElementException();
+                }
+                return values[this.index++];
+            }
+
+            @Override
+            public void remove() {
+                if (this.index == 0) {
+                    throw new IllegalStateException();
+                }
+                CompactStringSet.this.remove(values[this.index - 1]);
+            }
+        };
+    }
+
+    public CompactStringSet copy() {
+        return new CompactStringSet(this.values);
+    }
+
+    public synchronized void restore(CompactStringSet snapshot) {
+        this.values = snapshot.values;
+    }
+
+    public boolean shares(CompactStringSet other) {
+        return this.values == other.values;
+    }
+
+    public long footprint() {
+        return Footprint.OBJECT + Footprint.array(this.values.length);
+    }
+}
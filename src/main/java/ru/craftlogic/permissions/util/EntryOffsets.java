@@ -0,0 +1,140 @@
+package ru.craftlogic.permissions.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+
+public final class EntryOffsets {
+    private static final int BUFFER = 1 << 16;
+
+    private long[] most, least, offsets;
+    private int size;
+
+    public EntryOffsets() {
+        this.allocate(1024);
+    }
+
+    public static EntryOffsets read(Path file) throws IOException {
+        EntryOffsets table = new EntryOffsets();
+        byte[] buffer = new byte[BUFFER];
+        StringBuilder name = new StringBuilder(36);
+        int depth = 0;
+        boolean string = false, escape = false, key = false, expectKey = false, expectValue = false;
+        long position = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++, position++) {
+                    byte b = buffer[i];
+                    if (string) {
+                        if (escape) {
+                            escape = false;
+                        } else if (b == '\\') {
+                            escape = true;
+                        } else if (b == '"') {
+                            string = key = false;
+                        } else if (key) {
+                            name.append((char) b);
+                        }
+                        continue;
+                    }
+                    if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                        continue;
+                    }
+                    if (expectValue) {
+                        expectValue = false;
+                        table.put(name, position);
+                    }
+                    switch (b) {
+                        case '"':
+                            string = true;
+                            if (expectKey) {
+                                expectKey = false;
+                                key = true;
+                                name.setLength(0);
+                            }
+                            break;
+                        case '{':
+                        case '[':
+                            expectKey = depth++ == 0 && b == '{';
+                            break;
+                        case '}':
+                        case ']':
+                            depth--;
+                            break;
+                        case ':':
+                            expectValue = depth == 1;
+                            break;
+                        case ',':
+                            expectKey = depth == 1;
+                            break;
+                    }
+                }
+            }
+        }
+        return table;
+    }
+
+    private void put(CharSequence name, long offset) {
+        UUID id;
+        try {
+            id = UUID.fromString(name.toString());
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        if ((this.size + 1) * 2 > this.offsets.length) {
+            long[] most = this.most, least = this.least, offsets = this.offsets;
+            this.allocate(offsets.length * 2);
+            for (int i = 0; i < offsets.length; i++) {
+                if (offsets[i] != 0) {
+                    this.insert(most[i], least[i], offsets[i]);
+                }
+            }
+        }
+        if (this.insert(id.getMostSignificantBits(), id.getLeastSignificantBits(), offset)) {
+            this.size++;
+        }
+    }
+
+    public long get(UUID id) {
+        long most = id.getMostSignificantBits(), least = id.getLeastSignificantBits();
+        int mask = this.offsets.length - 1;
+        for (int i = slot(most, least, mask); this.offsets[i] != 0; i = (i + 1) & mask) {
+            if (this.most[i] == most && this.least[i] == least) {
+                return this.offsets[i];
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    private boolean insert(long most, long least, long offset) {
+        int mask = this.offsets.length - 1;
+        int i = slot(most, least, mask);
+        for (; this.offsets[i] != 0; i = (i + 1) & mask) {
+            if (this.most[i] == most && this.least[i] == least) {
+                return false;
+            }
+        }
+        this.most[i] = most;
+        this.least[i] = least;
+        this.offsets[i] = offset;
+        return true;
+    }
+
+    private void allocate(int capacity) {
+        this.most = new long[capacity];
+        this.least = new long[capacity];
+        this.offsets = new long[capacity];
+    }
+
+    private static int slot(long most, long least, int mask) {
+        long h = (most ^ least) * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ h >>> 32) & mask;
+    }
+}
@@ -0,0 +1,57 @@
+package ru.craftlogic.permissions.util;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class Footprint {
+    public static final long OBJECT = 16;
+    public static final long REFERENCE = 4;
+
+    private final Set<String> strings = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long stringBytes;
+
+    public static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    public static long array(int length) {
+        return align(16 + REFERENCE * length);
+    }
+
+    public static long longArray(int length) {
+        return align(16 + 8L * length);
+    }
+
+    public static long hashMap(int size) {
+        return size == 0 ? 48 : 48 + array(Integer.highestOneBit(Math.max(1, size * 4 / 3 - 1)) << 1) + 32L * size;
+    }
+
+    public void string(String value) {
+        if (value != null && this.strings.add(value)) {
+            this.stringBytes += align(24) + align(16 + 2L * value.length());
+        }
+    }
+
+    public void strings(Iterable<String> values) {
+        for (String value : values) {
+            this.string(value);
+        }
+    }
+
+    public void strings(Map<String, String> values) {
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            this.string(e.getKey());
+            this.string(e.getValue());
+        }
+    }
+
+    public int stringCount() {
+        return this.strings.size();
+    }
+
+    public long stringBytes() {
+        return this.stringBytes;
+    }
+}
@@ -0,0 +1,66 @@
+package ru.craftlogic.permissions.util;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+public final class JsonFragments {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+    private static final String INDENT = "  ";
+
+    private JsonFragments() {}
+
+    public static String encode(JsonObject json) {
+        return json.size() > 0 ? GSON.toJson(json).replace("\n", "\n" + INDENT) : "";
+    }
+
+    public static void write(Path file, Body body) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (JsonWriter writer = new JsonWriter(Files.newBufferedWriter(temporary, StandardCharsets.UTF_8))) {
+            writer.setIndent(INDENT);
+            writer.beginObject();
+            body.writeTo((name, fragment) -> {
+                if (!fragment.isEmpty()) {
+                    writer.name(name).jsonValue(fragment);
+                }
+            });
+            writer.endObject();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public interface Body {
+        void writeTo(Sink sink) throws IOException;
+    }
+
+    public interface Sink {
+        void accept(String name, String fragment) throws IOException;
+    }
+
+    public static final class Fragment {
+        private final long revision;
+        public final String json;
+
+        public Fragment(long revision, String json) {
+            this.revision = revision;
+            this.json = json;
+        }
+
+        public boolean matches(long revision) {
+            return this.revision == revision;
+        }
+    }
+}
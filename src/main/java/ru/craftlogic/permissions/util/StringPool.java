@@ -0,0 +1,14 @@
+package ru.craftlogic.permissions.util;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+public final class StringPool {
+    private static final Interner<String> INTERNER = Interners.newWeakInterner();
+
+    private StringPool() {}
+
+    public static String intern(String value) {
+        return value != null ? INTERNER.intern(value) : null;
+    }
+}
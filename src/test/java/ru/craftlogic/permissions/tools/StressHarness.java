@@ -0,0 +1,519 @@
+package ru.craftlogic.permissions.tools;
+
+import ru.craftlogic.permissions.Contexts;
+import ru.craftlogic.permissions.GroupManager;
+import ru.craftlogic.permissions.GroupManager.Group;
+import ru.craftlogic.permissions.PermissionManager;
+import ru.craftlogic.permissions.PermissionView;
+import ru.craftlogic.permissions.UserManager.User;
+import ru.craftlogic.permissions.event.PermissionChangeEvent.GroupChanged;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class StressHarness {
+    private static final String[] CONTEXTS = {Contexts.GLOBAL, Contexts.pair(Contexts.DIMENSION, "0"), Contexts.pair(Contexts.DIMENSION, "-1")};
+    private static final int MAX_EXPIRATION = 200;
+
+    private final int threads, seconds, userCount, groupCount, nodeCount;
+    private final PermissionManager permissionManager;
+    private final List<Group> fixedGroups = new ArrayList<>();
+    private final List<String> volatileGroups = new ArrayList<>();
+    private final List<User> stableUsers = new ArrayList<>();
+    private final List<User> churnUsers = new ArrayList<>();
+    private final Map<String, GroupModel> groupModels = new HashMap<>();
+    private final Map<User, UserModel> userModels = new HashMap<>();
+    private final Map<User, Set<String>> expected = new HashMap<>();
+    private final List<String> nodes = new ArrayList<>();
+    private final AtomicLong dynamicNodes = new AtomicLong();
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder mutations = new LongAdder();
+    private final LongAdder saves = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder staleReads = new LongAdder();
+    private final LongAdder exceptions = new LongAdder();
+    private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    StressHarness(Path directory, int threads, int seconds, int userCount, int groupCount, int nodeCount) {
+        this.threads = threads;
+        this.seconds = seconds;
+        this.userCount = userCount;
+        this.groupCount = groupCount;
+        this.nodeCount = nodeCount;
+        this.permissionManager = new PermissionManager(null, directory);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Integer> options = new HashMap<>();
+        options.put("threads", Runtime.getRuntime().availableProcessors());
+        options.put("seconds", 10);
+        options.put("users", 10000);
+        options.put("groups", 64);
+        options.put("nodes", 2000);
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--") || !options.containsKey(arg.substring(2)) || i + 1 >= args.length) {
+                System.err.println("Usage: StressHarness [--threads N] [--seconds N] [--users N] [--groups N] [--nodes N]");
+                System.exit(2);
+            }
+            options.put(arg.substring(2), Integer.parseInt(args[++i]));
+        }
+        Path directory = Files.createTempDirectory("permissions-stress");
+        StressHarness harness = new StressHarness(directory,
+            Math.max(1, options.get("threads")), Math.max(1, options.get("seconds")),
+            Math.max(2, options.get("users")), Math.max(4, options.get("groups")), Math.max(1, options.get("nodes")));
+        System.exit(harness.run() ? 0 : 1);
+    }
+
+    boolean run() throws InterruptedException {
+        Random random = new Random(0);
+        this.populate(random);
+        System.out.printf("Dataset: %d groups, %d users, %d nodes, %d reader threads, %d s%n",
+            this.permissionManager.groupManager.groups.size(), this.userCount, this.nodeCount, this.threads, this.seconds);
+
+        Histogram latency = new Histogram();
+        List<Thread> workers = new ArrayList<>();
+        List<Histogram> histograms = new ArrayList<>();
+        for (int i = 0; i < this.threads; i++) {
+            Histogram histogram = new Histogram();
+            histograms.add(histogram);
+            Random seed = new Random(i);
+            workers.add(this.worker("Reader #" + i, () -> this.read(seed, histogram)));
+        }
+        Random membershipSeed = new Random(-1);
+        Random groupSeed = new Random(-2);
+        workers.add(this.worker("Membership writer", () -> this.churnMemberships(membershipSeed)));
+        workers.add(this.worker("Group writer", () -> this.churnGroups(groupSeed)));
+        workers.add(this.worker("Ticker", this::tick));
+        workers.add(this.worker("Saver", this::save));
+
+        long start = System.nanoTime();
+        workers.forEach(Thread::start);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(this.seconds));
+        this.running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        for (Histogram histogram : histograms) {
+            latency.merge(histogram);
+        }
+
+        Thread.sleep(MAX_EXPIRATION + 50);
+        int mismatches = this.verify();
+
+        double secondsElapsed = elapsed / 1e9;
+        System.out.printf("Checks: %d (%.0f/s), mutations: %d, expired: %d, saves: %d%n",
+            this.checks.sum(), this.checks.sum() / secondsElapsed, this.mutations.sum(), this.expired.sum(), this.saves.sum());
+        System.out.printf("Latency: p50 %s, p99 %s, p999 %s, max %s%n",
+            format(latency.percentile(0.5)), format(latency.percentile(0.99)), format(latency.percentile(0.999)), format(latency.max));
+        System.out.printf("Stale reads: %d, exceptions: %d, final mismatches: %d%n",
+            this.staleReads.sum(), this.exceptions.sum(), mismatches);
+        for (Throwable failure : this.failures) {
+            failure.printStackTrace();
+        }
+        return this.staleReads.sum() == 0 && this.exceptions.sum() == 0 && mismatches == 0;
+    }
+
+    private void populate(Random random) {
+        GroupManager groupManager = this.permissionManager.groupManager;
+        for (int i = 0; i < this.nodeCount; i++) {
+            this.nodes.add("stress.node." + i);
+        }
+        String defaultGroupName = this.permissionManager.getDefaultGroupName();
+        this.fixedGroups.add(this.group(defaultGroupName, defaultGroupName, random));
+        int fixed = this.groupCount / 2;
+        for (int i = 1; i < fixed; i++) {
+            Group parent = this.fixedGroups.get(random.nextInt(this.fixedGroups.size()));
+            this.fixedGroups.add(this.group("fixed" + i, parent.name, random));
+        }
+        for (int i = fixed; i < this.groupCount; i++) {
+            String name = "volatile" + i;
+            this.volatileGroups.add(name);
+            this.group(name, this.fixedGroups.get(random.nextInt(this.fixedGroups.size())).name, random);
+        }
+        for (int i = 0; i < this.userCount; i++) {
+            User user = this.permissionManager.userManager.getUser(new UUID(0, i));
+            user.setContext(CONTEXTS[random.nextInt(CONTEXTS.length)]);
+            this.userModels.put(user, new UserModel());
+            if (random.nextInt(10) == 0) {
+                this.grant(user, Contexts.GLOBAL, this.randomNode(random));
+            }
+            if (random.nextInt(10) == 0) {
+                this.grant(user, CONTEXTS[1 + random.nextInt(CONTEXTS.length - 1)], this.randomNode(random));
+            }
+            int memberships = random.nextInt(3);
+            if (i % 2 == 0) {
+                for (int j = 0; j < memberships; j++) {
+                    Group group = this.fixedGroups.get(1 + random.nextInt(this.fixedGroups.size() - 1));
+                    this.join(user, group, 0, CONTEXTS[random.nextInt(CONTEXTS.length)]);
+                }
+                this.stableUsers.add(user);
+            } else {
+                for (int j = 0; j < memberships; j++) {
+                    Group group = groupManager.groups.get(this.volatileGroups.get(random.nextInt(this.volatileGroups.size())));
+                    this.join(user, group, 0, CONTEXTS[random.nextInt(CONTEXTS.length)]);
+                }
+                this.churnUsers.add(user);
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (User user : this.stableUsers) {
+            this.expected.put(user, this.resolve(this.userModels.get(user), user.context(), now));
+        }
+        this.permissionManager.events.flush();
+    }
+
+    private Group group(String name, String parent, Random random) {
+        GroupModel model = new GroupModel(name, parent);
+        Set<String> permissions = new HashSet<>();
+        int count = 1 + random.nextInt(Math.max(1, this.nodeCount / this.groupCount * 2));
+        for (int i = 0; i < count; i++) {
+            permissions.add(random.nextInt(50) == 0 ? "-" + this.randomNode(random) : this.randomNode(random));
+        }
+        model.permissionsIn(Contexts.GLOBAL).addAll(permissions);
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("stress.meta." + name, name);
+        model.metadata.putAll(metadata);
+        Group group = this.permissionManager.groupManager.new Group(name, parent, permissions, metadata, 0);
+        String node = this.randomNode(random);
+        group.permissionsIn(CONTEXTS[1]).add(node);
+        model.permissionsIn(CONTEXTS[1]).add(node);
+        this.permissionManager.groupManager.groups.put(name, group);
+        this.permissionManager.groupCreated(group);
+        this.groupModels.put(name, model);
+        return group;
+    }
+
+    private void grant(User user, String context, String node) {
+        this.permissionManager.nodeIndex.add(node);
+        if (!user.permissionsIn(context).add(node)) {
+            this.permissionManager.nodeIndex.remove(node);
+        }
+        this.userModels.get(user).permissionsIn(context).add(node);
+    }
+
+    private void join(User user, Group group, long expiration, String context) {
+        if (this.permissionManager.addMembership(user, group, expiration, context)) {
+            this.userModels.get(user).groupsIn(context).put(group.name, expiration);
+        }
+    }
+
+    private String randomNode(Random random) {
+        return this.nodes.get(random.nextInt(this.nodes.size()));
+    }
+
+    private Thread worker(String name, Runnable task) {
+        Thread thread = new Thread(() -> {
+            while (this.running) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    this.exceptions.increment();
+                    if (this.failures.size() < 10) {
+                        this.failures.add(t);
+                    }
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void read(Random random, Histogram histogram) {
+        boolean stable = random.nextBoolean();
+        List<User> users = stable ? this.stableUsers : this.churnUsers;
+        User user = users.get(random.nextInt(users.size()));
+        String node = random.nextInt(8) == 0 ? "stress.unknown." + random.nextInt(this.nodeCount) : this.randomNode(random);
+        long start = System.nanoTime();
+        boolean allowed = user.hasPermissions(node);
+        histogram.record(System.nanoTime() - start);
+        this.checks.increment();
+        if (stable && allowed != allows(this.expected.get(user), node)) {
+            this.staleReads.increment();
+        }
+    }
+
+    private void churnMemberships(Random random) {
+        User user = this.churnUsers.get(random.nextInt(this.churnUsers.size()));
+        String name = this.volatileGroups.get(random.nextInt(this.volatileGroups.size()));
+        String context = CONTEXTS[random.nextInt(CONTEXTS.length)];
+        synchronized (this.groupModels) {
+            Group group = this.permissionManager.getGroup(name);
+            if (group == null) {
+                return;
+            }
+            if (random.nextBoolean()) {
+                long expiration = random.nextBoolean() ? 0 : System.currentTimeMillis() + 1 + random.nextInt(MAX_EXPIRATION);
+                this.join(user, group, expiration, context);
+            } else if (this.permissionManager.removeMembership(user, group, context)) {
+                this.userModels.get(user).groupsIn(context).remove(name);
+            }
+        }
+        this.mutations.increment();
+    }
+
+    private void churnGroups(Random random) {
+        String name = this.volatileGroups.get(random.nextInt(this.volatileGroups.size()));
+        synchronized (this.groupModels) {
+            Group group = this.permissionManager.getGroup(name);
+            if (group == null) {
+                this.group(name, this.fixedGroups.get(random.nextInt(this.fixedGroups.size())).name, random);
+            } else if (random.nextInt(100) == 0) {
+                if (this.permissionManager.deleteGroup(group)) {
+                    this.groupModels.remove(name);
+                    for (UserModel user : this.userModels.values()) {
+                        for (Map<String, Long> groups : user.groups.values()) {
+                            groups.remove(name);
+                        }
+                    }
+                }
+            } else if (random.nextInt(100) == 0) {
+                if (this.permissionManager.renameGroup(group, name + ".renamed")) {
+                    this.permissionManager.renameGroup(group, name);
+                }
+            } else {
+                String node = "stress.dynamic." + this.dynamicNodes.incrementAndGet();
+                String context = CONTEXTS[random.nextInt(CONTEXTS.length)];
+                Set<String> permissions = group.permissionsIn(context);
+                this.permissionManager.nodeIndex.add(node);
+                permissions.add(node);
+                this.permissionManager.groupChanged(group, GroupChanged.Type.NODE, node);
+                permissions.remove(node);
+                this.permissionManager.nodeIndex.remove(node);
+                this.permissionManager.groupChanged(group, GroupChanged.Type.NODE, node);
+                Map<User, Long> members = this.permissionManager.groupManager.groupUsersCache.get(group);
+                if (members != null) {
+                    for (User user : members.keySet()) {
+                        if (user.view(context).permissions().contains(node) || user.hasPermissions(node)) {
+                            this.staleReads.increment();
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+        this.mutations.increment();
+    }
+
+    private void tick() {
+        this.expired.add(this.permissionManager.expire(System.currentTimeMillis()));
+        this.permissionManager.events.flush();
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void save() {
+        try {
+            this.permissionManager.userManager.save(true);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.saves.increment();
+        try {
+            Thread.sleep(50);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int verify() {
+        long now = System.currentTimeMillis();
+        this.expired.add(this.permissionManager.expire(now));
+        this.permissionManager.events.flush();
+        int mismatches = 0;
+        for (Map.Entry<User, UserModel> e : this.userModels.entrySet()) {
+            User user = e.getKey();
+            UserModel model = e.getValue();
+            for (String context : CONTEXTS) {
+                PermissionView view = user.view(context);
+                if (!view.permissions().equals(this.resolve(model, context, now)) || !view.metadata().equals(this.resolveMetadata(model, context, now))) {
+                    mismatches++;
+                }
+            }
+            Set<String> grants = this.resolve(model, user.context(), now);
+            for (String grant : grants) {
+                String node = grant.startsWith("-") ? grant.substring(1) : grant;
+                if (user.hasPermissions(node) != allows(grants, node)) {
+                    mismatches++;
+                }
+            }
+            if (user.hasPermissions("stress.unknown")) {
+                mismatches++;
+            }
+            for (Map.Entry<Group, Long> m : this.memberships(user).entrySet()) {
+                Map<User, Long> members = this.permissionManager.groupManager.groupUsersCache.get(m.getKey());
+                if (members == null || !members.containsKey(user) || this.permissionManager.getGroup(m.getKey().name) != m.getKey()) {
+                    mismatches++;
+                }
+                if (m.getValue() != 0 && m.getValue() < now) {
+                    mismatches++;
+                }
+            }
+        }
+        return mismatches;
+    }
+
+    private Map<Group, Long> memberships(User user) {
+        Map<Group, Long> memberships = new HashMap<>(user.groups);
+        for (Map<Group, Long> groups : user.contextGroups.values()) {
+            memberships.putAll(groups);
+        }
+        return memberships;
+    }
+
+    private static boolean allows(Set<String> grants, String node) {
+        return !grants.contains("-" + node) && (grants.contains("*") || grants.contains(node));
+    }
+
+    private List<GroupModel> activeGroups(UserModel user, String context, long now) {
+        List<GroupModel> groups = new ArrayList<>();
+        GroupModel defaultGroup = this.groupModels.get(this.permissionManager.getDefaultGroupName());
+        if (defaultGroup != null) {
+            groups.add(defaultGroup);
+        }
+        for (Map.Entry<String, Map<String, Long>> c : user.groups.entrySet()) {
+            if (Contexts.applies(c.getKey(), context)) {
+                for (Map.Entry<String, Long> e : c.getValue().entrySet()) {
+                    GroupModel group = this.groupModels.get(e.getKey());
+                    if (group != null && (e.getValue() == 0 || e.getValue() >= now)) {
+                        groups.add(group);
+                    }
+                }
+            }
+        }
+        return groups;
+    }
+
+    private List<GroupModel> chain(GroupModel group) {
+        List<GroupModel> chain = new ArrayList<>();
+        GroupModel g = group;
+        for (int depth = 1; g != null && depth <= GroupManager.MAX_DEPTH; depth++) {
+            chain.add(g);
+            g = g.parent.equals(g.name) ? null : this.groupModels.get(g.parent);
+        }
+        return chain;
+    }
+
+    private Set<String> resolve(UserModel user, String context, long now) {
+        Set<String> grants = new HashSet<>();
+        collect(user.permissions, context, grants);
+        for (GroupModel group : this.activeGroups(user, context, now)) {
+            for (GroupModel ancestor : this.chain(group)) {
+                collect(ancestor.permissions, context, grants);
+            }
+        }
+        return grants;
+    }
+
+    private static void collect(Map<String, Set<String>> permissions, String context, Set<String> grants) {
+        for (Map.Entry<String, Set<String>> e : permissions.entrySet()) {
+            if (Contexts.applies(e.getKey(), context)) {
+                grants.addAll(e.getValue());
+            }
+        }
+    }
+
+    private Map<String, String> resolveMetadata(UserModel user, String context, long now) {
+        Map<String, String> metadata = new HashMap<>();
+        for (GroupModel group : this.activeGroups(user, context, now)) {
+            List<GroupModel> chain = this.chain(group);
+            Collections.reverse(chain);
+            for (GroupModel ancestor : chain) {
+                metadata.putAll(ancestor.metadata);
+            }
+        }
+        return metadata;
+    }
+
+    private static String format(long nanos) {
+        return nanos < 10_000 ? nanos + " ns" : nanos < 10_000_000 ? nanos / 1000 + " us" : nanos / 1_000_000 + " ms";
+    }
+
+    private static class GroupModel {
+        final String name, parent;
+        final Map<String, Set<String>> permissions = new HashMap<>();
+        final Map<String, String> metadata = new HashMap<>();
+
+        GroupModel(String name, String parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        Set<String> permissionsIn(String context) {
+            return this.permissions.computeIfAbsent(context, k -> new HashSet<>());
+        }
+    }
+
+    private static class UserModel {
+        final Map<String, Set<String>> permissions = new HashMap<>();
+        final Map<String, Map<String, Long>> groups = new HashMap<>();
+
+        Set<String> permissionsIn(String context) {
+            return this.permissions.computeIfAbsent(context, k -> new HashSet<>());
+        }
+
+        Map<String, Long> groupsIn(String context) {
+            return this.groups.computeIfAbsent(context, k -> new HashMap<>());
+        }
+    }
+
+    private static class Histogram {
+        private static final int SUB_BUCKETS = 16;
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long total, max;
+
+        void record(long nanos) {
+            this.counts[index(Math.max(1, nanos))]++;
+            this.total++;
+            this.max = Math.max(this.max, nanos);
+        }
+
+        void merge(Histogram other) {
+            for (int i = 0; i < this.counts.length; i++) {
+                this.counts[i] += other.counts[i];
+            }
+            this.total += other.total;
+            this.max = Math.max(this.max, other.max);
+        }
+
+        long percentile(double p) {
+            long target = (long) Math.ceil(this.total * p);
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(upperBound(i), this.max);
+                }
+            }
+            return this.max;
+        }
+
+        private static int index(long value) {
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent < 4) {
+                return (int) value;
+            }
+            int mantissa = (int) (value >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+            return exponent * SUB_BUCKETS + mantissa;
+        }
+
+        private static long upperBound(int index) {
+            int exponent = index / SUB_BUCKETS;
+            if (exponent < 4) {
+                return index;
+            }
+            long mantissa = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + mantissa + 1) << (exponent - 4)) - 1;
+        }
+    }
+}